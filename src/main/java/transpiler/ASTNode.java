@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.lang.StringBuilder;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 public class ASTNode
@@ -14,6 +15,19 @@ public class ASTNode
     public String value;
     ASTNode parent;
     public List<ASTNode> children;
+    // Offset of the node in its source, or -1 if it isn't known, and the line
+    // index shared by the nodes of that source.
+    public int position;
+    public LineIndex lineIndex;
+    // Tag given by the scanner to the token of the node, such as the type of a
+    // number literal, or 0 if there's none.
+    public int tokenTag;
+    // Types of the single-child nodes collapsed into the node in a compact AST,
+    // from the outermost one. The node stands for the chain of those nodes,
+    // each with the next one as its only child, down to its own type.
+    public String[] wrappers;
+
+    static String[] NO_WRAPPERS = new String[0];
 
     public ASTNode()
     {
@@ -21,6 +35,10 @@ public class ASTNode
         this.type = null;
         this.value = null;
         this.parent = null;
+        this.position = -1;
+        this.lineIndex = null;
+        this.tokenTag = 0;
+        this.wrappers = NO_WRAPPERS;
         this.children = new ArrayList<>();
     }
 
@@ -30,6 +48,10 @@ public class ASTNode
         this.type = type;
         this.value = null;
         this.parent = null;
+        this.position = -1;
+        this.lineIndex = null;
+        this.tokenTag = 0;
+        this.wrappers = NO_WRAPPERS;
         this.children = new ArrayList<>();
     }
 
@@ -39,6 +61,10 @@ public class ASTNode
         this.type = type;
         this.value = value;
         this.parent = null;
+        this.position = -1;
+        this.lineIndex = null;
+        this.tokenTag = 0;
+        this.wrappers = NO_WRAPPERS;
         this.children = new ArrayList<>();
     }
 
@@ -48,6 +74,10 @@ public class ASTNode
         this.type = type;
         this.value = value;
         this.parent = null;
+        this.position = -1;
+        this.lineIndex = null;
+        this.tokenTag = 0;
+        this.wrappers = NO_WRAPPERS;
         setChildren(children);
     }
 
@@ -80,8 +110,8 @@ public class ASTNode
     public ASTNode getRoot()
     {
         ASTNode node = this;
-        while (this.parent != null) {
-            node = this.parent;
+        while (node.parent != null) {
+            node = node.parent;
         }
         return node;
     }
@@ -91,31 +121,128 @@ public class ASTNode
         return children.size() == 0;
     }
 
+    /**
+     * Merge the only child into the node, whose type becomes a wrapper of the
+     * child's, taken from the chains. The child itself is left as it was.
+     */
+    public void collapse(WrapperChains chains)
+    {
+        ASTNode child = children.get(0);
+        String[] childWrappers = chains.wrap(type, child.wrappers);
+        for (int i = wrappers.length - 1; i >= 0; i--) {
+            childWrappers = chains.wrap(wrappers[i], childWrappers);
+        }
+        wrappers = childWrappers;
+        type = child.type;
+        value = child.value;
+        position = child.position;
+        lineIndex = child.lineIndex;
+        tokenTag = child.tokenTag;
+        children.clear();
+        for (ASTNode grandchild : child.children) {
+            grandchild.parent = this;
+            children.add(grandchild);
+        }
+    }
+
+    /**
+     * Return the node at a level, which is one of its wrappers, or the node
+     * itself after them. A wrapper is returned as a new node, whose only child
+     * has the rest of the node and shares its children, so the tree isn't
+     * changed.
+     */
+    public ASTNode at(int level)
+    {
+        if (level == wrappers.length) return this;
+
+        ASTNode inner = new ASTNode(type, value);
+        inner.status = status;
+        inner.position = position;
+        inner.lineIndex = lineIndex;
+        inner.tokenTag = tokenTag;
+        inner.wrappers = Arrays.copyOfRange(wrappers, level + 1, wrappers.length);
+        inner.children = children;
+
+        ASTNode outer = new ASTNode(wrappers[level]);
+        outer.position = position;
+        outer.lineIndex = lineIndex;
+        outer.children = new ArrayList<>(1);
+        outer.addChildren(inner);
+        outer.parent = parent;
+        return outer;
+    }
+
+    /**
+     * Return the type of the node at a level, which is one of its wrappers, or
+     * the node itself after them.
+     */
+    public String levelType(int level)
+    {
+        return level < wrappers.length ? wrappers[level] : type;
+    }
+
+    /**
+     * Split the wrappers of the node and of its descendants, so the tree is the
+     * one it was before its nodes were collapsed.
+     */
+    public ASTNode expandWrappers()
+    {
+        if (wrappers.length > 0) {
+            ASTNode inner = at(0).children.get(0);
+            inner.setChildren(children);
+            type = wrappers[0];
+            value = null;
+            tokenTag = 0;
+            wrappers = NO_WRAPPERS;
+            children = new ArrayList<>(1);
+            addChildren(inner);
+        }
+        for (ASTNode child : children) {
+            child.expandWrappers();
+        }
+        return this;
+    }
+
     public List<ASTNode> getAllByPath(String path)
     {
         return getAll(splitPath(path));
     }
 
+    /**
+     * The path starts after the wrappers of the node, and goes through those of
+     * the nodes it finds. A node found at one of its wrappers is returned as
+     * `at` gives it, and the tree isn't changed.
+     */
     public List<ASTNode> getAll(String... types)
     {
         if (types.length == 0) return Arrays.asList(this);
 
         List<ASTNode> all = new ArrayList<>();
-        for (ASTNode child : children) {
-            if (!child.type.equals(types[0])) continue;
+        findAll(this, wrappers.length, types, 0, all);
+        return all;
+    }
 
-            if (types.length == 1) {
-                all.add(child);
-            } else {
-                all.addAll(child.getAll(Arrays.copyOfRange(types, 1, types.length)));
+    static void findAll(ASTNode node, int level, String[] types, int index, List<ASTNode> all)
+    {
+        if (index == types.length) {
+            all.add(node.at(level));
+        } else if (level < node.wrappers.length) {
+            if (node.levelType(level + 1).equals(types[index])) {
+                findAll(node, level + 1, types, index + 1, all);
+            }
+        } else {
+            for (ASTNode child : node.children) {
+                if (child.levelType(0).equals(types[index])) {
+                    findAll(child, 0, types, index + 1, all);
+                }
             }
         }
-        return all;
     }
 
     public boolean hasByPath(String path)
     {
-        return getByPath(path) != null;
+        String[] types = splitPath(path);
+        return types.length == 0 || find(this, wrappers.length, types, 0) != null;
     }
 
     public ASTNode getByPath(String path)
@@ -127,11 +254,27 @@ public class ASTNode
     {
         if (types.length == 0) return this;
 
-        for (ASTNode child : children) {
-            if (!child.type.equals(types[0])) continue;
+        return find(this, wrappers.length, types, 0);
+    }
 
-            return types.length == 1 ?
-                child : child.get(Arrays.copyOfRange(types, 1, types.length));
+    /**
+     * Return the node at the end of the path from the node at the level, going
+     * into the first child of each type, or null if there's none. A node found at
+     * one of its wrappers is returned as `at` gives it.
+     */
+    static ASTNode find(ASTNode node, int level, String[] types, int index)
+    {
+        if (index == types.length) return node.at(level);
+
+        if (level < node.wrappers.length) {
+            return node.levelType(level + 1).equals(types[index]) ?
+                find(node, level + 1, types, index + 1) : null;
+        }
+
+        for (ASTNode child : node.children) {
+            if (!child.levelType(0).equals(types[index])) continue;
+
+            return find(child, 0, types, index + 1);
         }
 
         return null;
@@ -184,12 +327,22 @@ public class ASTNode
                 node.value == null : value.equals(node.value);
             return typesAreEqual
                 && valuesAreEqual
+                && Arrays.equals(wrappers, node.wrappers)
                 && children.size() == node.children.size();
         } else {
             return false;
         }
     }
 
+    /**
+     * Return the line and column of the node, or null if they aren't known.
+     */
+    public String describeLocation()
+    {
+        if (position < 0 || lineIndex == null) return null;
+        return lineIndex.describe(position);
+    }
+
     @Override
     public String toString()
     {
@@ -201,6 +354,9 @@ public class ASTNode
     private void print(StringBuilder buffer, String prefix, String childrenPrefix)
     {
         buffer.append(prefix);
+        for (String wrapper : wrappers) {
+            buffer.append("(" + wrapper + ") > ");
+        }
         buffer.append(value == null ?
                       "(" + type + ")" : "(" + type + ", " + value + ")");
         buffer.append('\n');
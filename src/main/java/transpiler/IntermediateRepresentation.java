@@ -1,14 +1,19 @@
 package transpiler;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
 import java.util.Map;
+import java.util.Objects;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.function.Function;
+import transpiler.scheme.Exactness;
+import transpiler.scheme.NumberLiteral;
 
 class NodePathNotMatched extends RuntimeException
 {
@@ -17,6 +22,8 @@ class NodePathNotMatched extends RuntimeException
         super(String.join("\n",
                           "No nodes match the path.",
                           "Path: " + path,
+                          "Location: " + Objects.requireNonNullElse(node.describeLocation(),
+                                                                    "unknown"),
                           "Node:",
                           node.toString()));
     }
@@ -89,34 +96,53 @@ public class IntermediateRepresentation
         {
             if (nodeWasSieved(node)) return null;
 
-            Map<String, ASTNode> conversionCases = getConversions(node);
-
-            if (conversionCases == null) {
-                node.status = "SIEVED";
-                return null;
-            }
+            convert(node, 0);
+            return null;
+        }
 
+        /**
+         * Convert the node at the first of its levels, from the given one, with
+         * a conversion whose case it matches. The wrappers of a compact node are
+         * converted as the nodes they stand for, and those before the converted
+         * level are kept.
+         */
+        void convert(ASTNode node, int fromLevel)
+        {
+            ASTNode sourceNode = null;
             ASTNode conversionNode = null;
-            for (Map.Entry<String, ASTNode> entry : conversionCases.entrySet()) {
-                if (node.hasByPath(entry.getKey())) {
-                    conversionNode = entry.getValue();
-                    break;
+            int level = fromLevel;
+            for (; level <= node.wrappers.length; level++) {
+                Map<String, ASTNode> conversionCases = level < node.wrappers.length ?
+                    NODE_CONVERSIONS.get(node.wrappers[level]) : getConversions(node);
+                if (conversionCases == null) continue;
+
+                sourceNode = node.at(level);
+                for (Map.Entry<String, ASTNode> entry : conversionCases.entrySet()) {
+                    if (sourceNode.hasByPath(entry.getKey())) {
+                        conversionNode = entry.getValue();
+                        break;
+                    }
                 }
+                if (conversionNode != null) break;
             }
 
             if (conversionNode == null) {
                 node.status = "SIEVED";
-                return null;
+                return;
             }
 
-            ASTNode convertedNode = applyConversion(node, conversionNode);
+            ASTNode convertedNode = applyConversion(sourceNode, conversionNode);
+            if (level < node.wrappers.length) {
+                node.wrappers = level == 0 ?
+                    ASTNode.NO_WRAPPERS : Arrays.copyOf(node.wrappers, level);
+            }
             node.value = convertedNode.value;
             node.setChildren(convertedNode.children);
 
             // "*" indicates that the conversion should be recursed on the new node.
             if (convertedNode.type.startsWith("*")) {
                 node.type = convertedNode.type.substring(1);
-                apply(node);
+                convert(node, node.wrappers.length);
             } else {
                 node.type = convertedNode.type;
             }
@@ -130,7 +156,6 @@ public class IntermediateRepresentation
             }
 
             node.status = "SIEVED";
-            return null;
         }
     }
 
@@ -383,89 +408,110 @@ public class IntermediateRepresentation
         }
     }
 
-    static String changeIntegerBase(String value, int radix)
+    /**
+     * Convert the literal using the tag given to it by the scanner, or classify it
+     * if it has none.
+     */
+    static String convertNumberLiteral(String value, int tag)
     {
-        List<Character> digits = Arrays.asList('0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f');
-
-        // Double number = (Double) 0;
-        int number = 0;
-
-        for (int i = 0; i < value.length(); i++) {
-            number += digits.indexOf(value.charAt(i)) * Math.pow(radix, i);
+        if (tag == 0) tag = NumberLiteral.classify(value);
+
+        int radix = NumberLiteral.radix(tag);
+        Exactness exactness = NumberLiteral.exactness(tag);
+        int separator = NumberLiteral.separator(tag);
+        String number = value.substring(NumberLiteral.prefixLength(tag));
+
+        return switch (NumberLiteral.type(tag)) {
+        case POLAR -> "Polar("
+            + convertRealLiteral(value.substring(NumberLiteral.prefixLength(tag), separator),
+                                 radix, exactness)
+            + ", "
+            + convertRealLiteral(value.substring(separator + 1), radix, exactness)
+            + ")";
+        case RECTANGULAR -> {
+            String realPart = value.substring(NumberLiteral.prefixLength(tag), separator);
+            String imaginaryPart = value.substring(separator, value.length() - 1);
+            if (imaginaryPart.equals("+") || imaginaryPart.equals("-")) {
+                imaginaryPart += "1";
+            }
+            yield "Complex("
+                + (realPart.isEmpty() ? "0" : convertRealLiteral(realPart, radix, exactness))
+                + ", "
+                + convertRealLiteral(imaginaryPart, radix, exactness)
+                + ")";
         }
+        default -> "Complex(" + convertRealLiteral(number, radix, exactness) + ", 0)";
+        };
+    }
 
-        return ((Integer) number).toString();
+    static String convertNumberLiteral(String value)
+    {
+        return convertNumberLiteral(value, 0);
     }
 
-    static String convertIntegerLiteral(String value)
+    static String convertRealLiteral(String value, int radix, Exactness exactness)
     {
-        int radix;
-        if (value.contains("#b")) {
-            radix = 2;
-        } else if (value.contains("#x")) {
-            radix = 6;
-        } else if (value.contains("#o")) {
-            radix = 8;
+        if (value.endsWith("inf.0")) {
+            return value.startsWith("-") ? "Double.NegativeInfinity" : "Double.PositiveInfinity";
+        } else if (value.endsWith("nan.0")) {
+            return "Double.NaN";
+        }
+
+        BigInteger numerator;
+        BigInteger denominator;
+        int slash = value.indexOf('/');
+        if (slash >= 0) {
+            numerator = new BigInteger(value.substring(0, slash), radix);
+            denominator = new BigInteger(value.substring(slash + 1), radix);
+            if (denominator.signum() == 0) {
+                return numerator.signum() < 0 ?
+                    "Double.NegativeInfinity" : "Double.PositiveInfinity";
+            }
+        } else if (radix == 10 && (value.contains(".") || value.contains("e"))) {
+            if (exactness != Exactness.EXACT) {
+                return Double.toString(Double.parseDouble(value));
+            }
+            BigDecimal decimal = new BigDecimal(value);
+            numerator = decimal.unscaledValue();
+            denominator = BigInteger.ONE;
+            if (decimal.scale() > 0) {
+                denominator = BigInteger.TEN.pow(decimal.scale());
+            } else {
+                numerator = numerator.multiply(BigInteger.TEN.pow(-decimal.scale()));
+            }
         } else {
-            radix = 10;
+            numerator = new BigInteger(value, radix);
+            denominator = BigInteger.ONE;
         }
-        return radix == 10 ? value : changeIntegerBase(value, radix);
-    }
 
-    static String convertRealLiteral(String value)
-    {
-        if (value.contains("/")) {
-            String[] numbers = value.split("/");
-            value =
-                !numbers[1].equals("0") ?
-                "Rational("
-                + convertIntegerLiteral(numbers[0])
-                + ", "
-                + convertIntegerLiteral(numbers[1])
-                + ")"
-                : (numbers[0].contains("-") ?
-                   "Dobule.NegativeInfinity" : "Dobule.PositiveInfinity");
-        } else if (value.equals("+inf.0")) {
-            value = "Double.PositiveInfinity";
-        } else if (value.equals("-inf.0")) {
-            value = "Double.NegativeInfinity";
-        } else if (value.contains("nan.0")) {
-            value = "Double.NaN";
+        if (exactness == Exactness.INEXACT) {
+            return Double.toString(new BigDecimal(numerator)
+                                   .divide(new BigDecimal(denominator), MathContext.DECIMAL64)
+                                   .doubleValue());
         }
-        return value;
+
+        BigInteger divisor = numerator.gcd(denominator);
+        numerator = numerator.divide(divisor);
+        denominator = denominator.divide(divisor);
+        return denominator.equals(BigInteger.ONE) ?
+            convertIntegerLiteral(numerator)
+            : "Rational(" + convertIntegerLiteral(numerator)
+              + ", " + convertIntegerLiteral(denominator) + ")";
     }
 
-    static String convertNumberLiteral(String value)
+    static String convertIntegerLiteral(BigInteger value)
     {
-        value = value.replace("#i", "").replace("#e", "").replace("#d", "");
-
-        if (value.contains("@")) {
-            String[] numbers = value.split("@");
-            value =
-                "Polar("
-                + convertRealLiteral(numbers[0])
-                + ", "
-                + convertRealLiteral(numbers[1])
-                + ")";
-        } else if (value.contains("i")) {
-            Matcher matcher = Pattern.compile("(.*?)([\\+-][^\\+-]*i)$").matcher(value);
-            value =
-                "Complex("
-                + convertRealLiteral(matcher.group(0).length() == 0 ?
-                                     "0" : matcher.group(0))
-                + ", "
-                + convertRealLiteral(matcher.group(1))
-                + ")";
-        } else {
-            value = "Complex(" + convertRealLiteral(value) + ", 0)";
+        if (value.bitLength() < Integer.SIZE) {
+            return value.toString();
+        } else if (value.bitLength() < Long.SIZE) {
+            return value + "L";
         }
-
-        return value;
+        return "BigInt(\"" + value + "\")";
     }
 
     static void convertNumberLiteral(ASTNode node)
     {
-        node.value = convertNumberLiteral(node.value);
+        node.value = convertNumberLiteral(node.value, node.tokenTag);
     }
 
     static Boolean patternMatches(String pattern, String string) {
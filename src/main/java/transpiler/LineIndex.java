@@ -0,0 +1,112 @@
+package transpiler;
+
+import java.util.Arrays;
+
+/**
+ * Start offsets of the lines of a source, which turn offsets into lines and
+ * columns. They're only found when a location is first asked for, so scanning
+ * and parsing never pay for them.
+ *
+ * A code which is read while it's scanned has no source to find them in, so
+ * its line starts are added as they're read instead, from a line which may
+ * not be the first one, so the lines before it needn't be kept.
+ */
+public class LineIndex
+{
+    CharSequence source;
+    int[] lineStarts;
+    int count;
+    // Line of the first line start.
+    int firstLine;
+
+    public LineIndex(CharSequence source)
+    {
+        this.source = source;
+        this.lineStarts = null;
+        this.count = 0;
+        this.firstLine = 1;
+    }
+
+    public LineIndex()
+    {
+        this(1, 0);
+    }
+
+    /**
+     * Create an index of the lines of a code which is being read, from the line
+     * `firstLine`, which starts at `firstLineStart`.
+     */
+    public LineIndex(int firstLine, int firstLineStart)
+    {
+        this.source = null;
+        this.lineStarts = new int[16];
+        this.lineStarts[0] = firstLineStart;
+        this.count = 1;
+        this.firstLine = firstLine;
+    }
+
+    /**
+     * Add the start of a line of a code which is being read, after the ones
+     * added before.
+     */
+    public synchronized void addLineStart(int offset)
+    {
+        if (count == lineStarts.length) lineStarts = Arrays.copyOf(lineStarts, count * 2);
+        lineStarts[count++] = offset;
+    }
+
+    synchronized int[] lineStarts()
+    {
+        if (lineStarts != null) return lineStarts;
+
+        int[] starts = new int[16];
+        count = 1;
+        int length = source.length();
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            // "\r\n" is a single line ending.
+            if (c == '\n' || (c == '\r' && (i + 1 == length || source.charAt(i + 1) != '\n'))) {
+                if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i + 1;
+            }
+        }
+        lineStarts = starts;
+        return lineStarts;
+    }
+
+    /**
+     * Return the line of the offset, starting from 1.
+     */
+    public int line(int offset)
+    {
+        int[] starts;
+        int high;
+        synchronized (this) {
+            starts = lineStarts();
+            high = count - 1;
+        }
+        int low = 0;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low + firstLine;
+    }
+
+    /**
+     * Return the column of the offset, starting from 1.
+     */
+    public int column(int offset)
+    {
+        return offset - lineStarts()[line(offset) - firstLine] + 1;
+    }
+
+    public String describe(int offset)
+    {
+        return "line " + line(offset) + ", column " + column(offset);
+    }
+}
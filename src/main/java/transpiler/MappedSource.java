@@ -0,0 +1,226 @@
+package transpiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Source files read through a memory mapping instead of being copied onto the
+ * heap. The code is returned as a CharSequence which can be scanned directly.
+ * ASCII files are read one character at a time. Other files are UTF-8, which is
+ * checked and counted once, then decoded a region at a time as it's read, and
+ * only the last regions read are kept.
+ */
+public class MappedSource
+{
+    public static CharSequence map(Path path) throws IOException
+    {
+        MappedByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be mapped: " + path);
+            }
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // ASCII files, which are most of them, are decoded one character at a time
+        // as they're read. Otherwise, the characters of each region are found
+        // once, and the regions are decoded again when they're read.
+        if (isAscii(bytes)) {
+            return new AsciiSequence(bytes, 0, bytes.limit());
+        }
+        Utf8Regions regions = new Utf8Regions(bytes);
+        return new Utf8Sequence(regions, 0, regions.length());
+    }
+
+    static boolean isAscii(ByteBuffer bytes)
+    {
+        for (int i = 0; i < bytes.limit(); i++) {
+            if (bytes.get(i) < 0) return false;
+        }
+        return true;
+    }
+
+    static class AsciiSequence implements CharSequence
+    {
+        ByteBuffer bytes;
+        int start;
+        int end;
+
+        public AsciiSequence(ByteBuffer bytes, int start, int end)
+        {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length()
+        {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return (char) bytes.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to)
+        {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException("[" + from + ", " + to + ")");
+            }
+            return new AsciiSequence(bytes, start + from, start + to);
+        }
+
+        @Override
+        public String toString()
+        {
+            byte[] chars = new byte[length()];
+            bytes.get(start, chars);
+            return new String(chars, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * The characters of UTF-8 bytes, decoded by regions of at most REGION_SIZE
+     * characters. A decoded region is kept in one of CACHE_SIZE slots, so the
+     * parts of the code scanned at the same time don't keep decoding them
+     * again.
+     */
+    static class Utf8Regions
+    {
+        static int REGION_SIZE = 1 << 13;
+        static int CACHE_SIZE = 64;
+
+        record Region(int start, char[] chars) {}
+
+        ByteBuffer bytes;
+        // Offsets of the bytes and of the characters of each region, and of
+        // their end after the last one.
+        int[] byteStarts;
+        int[] charStarts;
+        int count;
+        Region[] cache;
+
+        public Utf8Regions(ByteBuffer bytes) throws IOException
+        {
+            this.bytes = bytes;
+            this.byteStarts = new int[bytes.limit() / (REGION_SIZE - 1) + 2];
+            this.charStarts = new int[byteStarts.length];
+            this.count = 0;
+            this.cache = new Region[CACHE_SIZE];
+
+            // The decoder fails on malformed bytes, and doesn't end a region
+            // between the two characters of a surrogate pair.
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            ByteBuffer input = bytes.duplicate();
+            CharBuffer output = CharBuffer.allocate(REGION_SIZE);
+            int chars = 0;
+            while (input.hasRemaining()) {
+                byteStarts[count] = input.position();
+                charStarts[count] = chars;
+                count++;
+                output.clear();
+                CoderResult result = decoder.decode(input, output, true);
+                if (result.isError()) result.throwException();
+                chars += output.position();
+            }
+            byteStarts[count] = input.position();
+            charStarts[count] = chars;
+        }
+
+        int length()
+        {
+            return charStarts[count];
+        }
+
+        char charAt(int index)
+        {
+            int slot = (index / REGION_SIZE) % CACHE_SIZE;
+            Region region = cache[slot];
+            if (region == null
+                || index < region.start()
+                || index >= region.start() + region.chars().length) {
+                region = decode(index);
+                cache[slot] = region;
+            }
+            return region.chars()[index - region.start()];
+        }
+
+        /**
+         * Decode the region of the character at the index.
+         */
+        Region decode(int index)
+        {
+            int found = Arrays.binarySearch(charStarts, 0, count, index);
+            int i = found >= 0 ? found : -found - 2;
+            char[] chars = new char[charStarts[i + 1] - charStarts[i]];
+            ByteBuffer input = bytes.duplicate();
+            input.position(byteStarts[i]).limit(byteStarts[i + 1]);
+            StandardCharsets.UTF_8.newDecoder().decode(input, CharBuffer.wrap(chars), true);
+            return new Region(charStarts[i], chars);
+        }
+    }
+
+    static class Utf8Sequence implements CharSequence
+    {
+        Utf8Regions regions;
+        int start;
+        int end;
+
+        public Utf8Sequence(Utf8Regions regions, int start, int end)
+        {
+            this.regions = regions;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length()
+        {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return regions.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to)
+        {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException("[" + from + ", " + to + ")");
+            }
+            return new Utf8Sequence(regions, start + from, start + to);
+        }
+
+        @Override
+        public String toString()
+        {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = regions.charAt(start + i);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -3,35 +3,184 @@ package transpiler;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
+import transpiler.scheme.ParserProfile;
+import transpiler.scheme.ScanMode;
+import transpiler.scheme.SchemeParser;
 import transpiler.scheme.SchemeScanner;
+import transpiler.scheme.Token;
+import transpiler.scheme.TokenBuffer;
 import transpiler.scala.ScalaUnparser;
 
 public class Transpiler {
+    // --dfa: scan with the compiled automaton instead of the regexes.
+    // --mmap: map the input file into memory instead of reading it.
+    // --stream: convert and write each top-level form as soon as it's read.
+    // --profile: write the profile of the parser's rules to profile.txt and
+    // profile.json.
+    static Set<String> OPTIONS = Set.of("--dfa", "--mmap", "--stream", "--profile");
+
     public static void main(String[] args) throws IOException, ParseException, Exception {
-        if (args.length != 1) {
+        List<String> options = new ArrayList<>();
+        List<String> filenames = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            } else {
+                filenames.add(arg);
+            }
+        }
+        for (String option : options) {
+            if (!OPTIONS.contains(option)) {
+                System.out.println("Unknown option: " + option);
+                throw new Exception();
+            }
+        }
+        if (filenames.size() != 1) {
             System.out.println("Wrong number of parameters provided.");
             throw new Exception();
         }
 
-        String inputFilename = args[0];
-        Path path = Paths.get(inputFilename);
-        String schemeCode = String.join("\n", Files.readAllLines(path));
-        String scalaCode = convertSchemeToScalaCode(schemeCode);
-        try (PrintWriter outputStream = new PrintWriter("output.scala")) {
-            outputStream.println(scalaCode);
+        ScanMode scanMode = options.contains("--dfa") ? ScanMode.DFA : ScanMode.REGEX;
+        Path path = Paths.get(filenames.get(0));
+        ParserProfile profile = options.contains("--profile") ? new ParserProfile() : null;
+        if (options.contains("--stream")) {
+            try (PrintWriter outputStream = new PrintWriter("output.scala")) {
+                if (options.contains("--mmap")) {
+                    TokenBuffer tokens = SchemeScanner.scan(MappedSource.map(path), scanMode);
+                    convertSchemeToScalaCode(tokens.iterator(), outputStream, profile);
+                } else {
+                    try (Reader reader = Files.newBufferedReader(path)) {
+                        convertSchemeToScalaCode(SchemeScanner.tokenize(reader, scanMode),
+                                                 outputStream,
+                                                 profile);
+                    }
+                }
+            }
+        } else {
+            String scalaCode;
+            if (options.contains("--mmap")) {
+                scalaCode = convertSchemeToScalaCode(MappedSource.map(path), scanMode, profile);
+            } else {
+                try (Reader reader = Files.newBufferedReader(path)) {
+                    scalaCode = convertSchemeToScalaCode(reader, scanMode, profile);
+                }
+            }
+            try (PrintWriter outputStream = new PrintWriter("output.scala")) {
+                outputStream.println(scalaCode);
+            }
+        }
+
+        if (profile != null) {
+            try (PrintWriter profileStream = new PrintWriter("profile.txt")) {
+                profileStream.print(profile.report());
+            }
+            try (PrintWriter profileStream = new PrintWriter("profile.json")) {
+                profileStream.println(profile.toJson());
+            }
         }
     }
 
+    /**
+     * The AST is compact, as on the other paths, so the wrappers of the
+     * single-child nodes don't take nodes of their own.
+     */
     public static String convertSchemeToScalaCode(String schemeCode)
     {
-        ASTNode schemeAst = SchemeScanner.generateAST(schemeCode);
+        SchemeParser parser = new SchemeParser(SchemeScanner.scan(schemeCode, ScanMode.REGEX));
+        parser.compact(true);
+        return convertSchemeASTToScalaCode(parser.parse());
+    }
+
+    /**
+     * The code is tokenized while it's read, so it's never held in memory as a
+     * whole. The tokens keep their positions in it, so the errors and the
+     * nodes have their locations in its lines.
+     */
+    public static String convertSchemeToScalaCode(Reader schemeCode, ScanMode mode)
+    {
+        return convertSchemeToScalaCode(schemeCode, mode, null);
+    }
+
+    /**
+     * The rules of the parser are counted in the profile, unless it's null.
+     * The AST is compact, so the wrappers of the single-child nodes don't take
+     * nodes of their own.
+     */
+    public static String convertSchemeToScalaCode(Reader schemeCode,
+                                                  ScanMode mode,
+                                                  ParserProfile profile)
+    {
+        TokenBuffer tokens = SchemeScanner.scan(schemeCode, mode);
+        SchemeParser parser = new SchemeParser(tokens);
+        parser.profile(profile);
+        parser.compact(true);
+        return convertSchemeASTToScalaCode(parser.parse());
+    }
+
+    /**
+     * The tokens only keep offsets into the code, so a mapped file is scanned
+     * and parsed in place, line endings included.
+     */
+    public static String convertSchemeToScalaCode(CharSequence schemeCode, ScanMode mode)
+    {
+        return convertSchemeToScalaCode(schemeCode, mode, null);
+    }
+
+    public static String convertSchemeToScalaCode(CharSequence schemeCode,
+                                                  ScanMode mode,
+                                                  ParserProfile profile)
+    {
+        TokenBuffer tokens = SchemeScanner.scan(schemeCode, mode);
+        SchemeParser parser = new SchemeParser(tokens);
+        parser.profile(profile);
+        parser.compact(true);
+        return convertSchemeASTToScalaCode(parser.parse());
+    }
+
+    /**
+     * Each top-level form is converted and written as soon as it's parsed, so
+     * neither the code nor the output is held in memory as a whole. The output
+     * is the same as `convertSchemeToScalaCode`'s, followed by a line ending.
+     */
+    public static void convertSchemeToScalaCode(Iterator<Token> tokens, PrintWriter output)
+    {
+        convertSchemeToScalaCode(tokens, output, null);
+    }
+
+    public static void convertSchemeToScalaCode(Iterator<Token> tokens,
+                                                PrintWriter output,
+                                                ParserProfile profile)
+    {
+        output.print(ScalaUnparser.generateHeader());
+        boolean empty = true;
+        Iterator<ASTNode> forms = SchemeParser.parseForms(tokens, profile, true);
+        while (forms.hasNext()) {
+            ASTNode schemeAst = new ASTNode("PROGRAM");
+            schemeAst.addChildren(forms.next());
+            ASTNode scalaAst = IntermediateRepresentation.generateScalaAST(schemeAst);
+            for (String form : ScalaUnparser.generateForms(scalaAst)) {
+                output.print("\n" + form);
+                empty = false;
+            }
+        }
+        // An empty program still has a line between the header and the footer.
+        if (empty) output.print("\n");
+        output.println("\n" + ScalaUnparser.generateFooter());
+    }
+
+    static String convertSchemeASTToScalaCode(ASTNode schemeAst)
+    {
         ASTNode scalaAst = IntermediateRepresentation.generateScalaAST(schemeAst);
         String scalaCode = ScalaUnparser.generateCode(scalaAst);
         return scalaCode;
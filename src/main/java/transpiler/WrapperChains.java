@@ -0,0 +1,32 @@
+package transpiler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wrappers of the nodes collapsed by a parser, so the nodes with the same chain
+ * share it. A chain is found by the type added in front of the wrappers of the
+ * child, which are themselves a chain of the table, so it's keyed by their
+ * identity. The table belongs to a parser and goes away with it.
+ */
+public class WrapperChains
+{
+    Map<String[], Map<String, String[]>> chains;
+
+    public WrapperChains()
+    {
+        this.chains = new ConcurrentHashMap<>();
+    }
+
+    String[] wrap(String type, String[] wrappers)
+    {
+        return chains
+            .computeIfAbsent(wrappers, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(type, key -> {
+                    String[] chain = new String[wrappers.length + 1];
+                    chain[0] = type;
+                    System.arraycopy(wrappers, 0, chain, 1, wrappers.length);
+                    return chain;
+                });
+    }
+}
@@ -257,21 +257,22 @@ public class ScalaUnparser
 
     static List<String> generateCodeBlocks(ASTNode node)
     {
-        Cases templateCases = TEMPLATES.get(node.type);
+        // The wrappers of a compact node have no values, so they're skipped
+        // like nodes without templates, unless they have one which matches.
+        for (int level = 0; level <= node.wrappers.length; level++) {
+            Cases templateCases = TEMPLATES.get(node.levelType(level));
 
-        if (templateCases == null) return null;
+            if (templateCases == null) continue;
 
-        Template template = null;
-        for (Map.Entry<String, Template> entry : templateCases.cases.entrySet()) {
-            if (node.hasByPath(entry.getKey())) {
-                template = entry.getValue();
-                break;
+            ASTNode levelNode = node.at(level);
+            for (Map.Entry<String, Template> entry : templateCases.cases.entrySet()) {
+                if (levelNode.hasByPath(entry.getKey())) {
+                    return fillTemplate(entry.getValue(), levelNode);
+                }
             }
         }
 
-        if (template == null) return null;
-
-        return fillTemplate(template, node);
+        return null;
     }
 
     void generateCodeLines()
@@ -286,13 +287,55 @@ public class ScalaUnparser
         codeLines.add("import SchemeHelpers.{given, *}\n");
     }
 
+    void addMainHeader()
+    {
+        codeLines.add("def main(args: Array[String]) = println({");
+    }
+
+    void addMainFooter()
+    {
+        codeLines.add("})");
+    }
+
     public static String generateCode(ASTNode ast)
     {
         ScalaUnparser unparser = new ScalaUnparser(ast);
         unparser.addHelperFile();
-        unparser.codeLines.add("def main(args: Array[String]) = println({");
+        unparser.addMainHeader();
         unparser.generateCodeLines();
-        unparser.codeLines.add("})");
+        unparser.addMainFooter();
+        return String.join("\n", unparser.codeLines);
+    }
+
+    /*
+     * The following methods generate the code of a program form by form, which
+     * `generateCode` joins with "\n".
+     */
+
+    public static String generateHeader()
+    {
+        ScalaUnparser unparser = new ScalaUnparser(null);
+        unparser.addHelperFile();
+        unparser.addMainHeader();
+        return String.join("\n", unparser.codeLines);
+    }
+
+    /**
+     * Return the code of each top-level form of the program.
+     */
+    public static List<String> generateForms(ASTNode ast)
+    {
+        List<String> forms = new ArrayList<>();
+        for (ASTNode form : ast.children) {
+            forms.add(stringify(form));
+        }
+        return forms;
+    }
+
+    public static String generateFooter()
+    {
+        ScalaUnparser unparser = new ScalaUnparser(null);
+        unparser.addMainFooter();
         return String.join("\n", unparser.codeLines);
     }
 }
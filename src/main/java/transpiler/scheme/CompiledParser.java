@@ -0,0 +1,229 @@
+package transpiler.scheme;
+
+import java.lang.reflect.Constructor;
+import java.util.regex.Pattern;
+import transpiler.ASTNode;
+
+/**
+ * Base of the parsers which `ParserGenerator` writes from a grammar, where each
+ * rule and each expression is a method. The generated methods share the memo
+ * tables, the predictive tables and the error reporting of the `SchemeParser`
+ * they belong to, so they give the same results as interpreting the grammar.
+ */
+abstract class CompiledParser
+{
+    static String COMPILED_SCHEME_PARSER = "transpiler.scheme.CompiledSchemeParser";
+    // Constructor of the parser generated from the default grammar, which is
+    // only looked up once. It's null if the parser wasn't generated.
+    static Constructor<?> COMPILED_SCHEME_PARSER_CONSTRUCTOR = null;
+    static boolean compiledSchemeParserLoaded = false;
+
+    SchemeParser parser;
+    TokenBuffer tokens;
+
+    public CompiledParser(SchemeParser parser)
+    {
+        this.parser = parser;
+        this.tokens = parser.tokens;
+    }
+
+    /**
+     * Return the parser generated from the default grammar, or null if it isn't
+     * on the class path.
+     */
+    static CompiledParser forDefaultDefinitions(SchemeParser parser)
+    {
+        Constructor<?> constructor = compiledSchemeParserConstructor();
+        if (constructor == null) return null;
+        try {
+            return (CompiledParser) constructor.newInstance(parser);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("The compiled parser couldn't be created.", e);
+        }
+    }
+
+    static synchronized Constructor<?> compiledSchemeParserConstructor()
+    {
+        if (!compiledSchemeParserLoaded) {
+            compiledSchemeParserLoaded = true;
+            try {
+                COMPILED_SCHEME_PARSER_CONSTRUCTOR = Class
+                    .forName(COMPILED_SCHEME_PARSER)
+                    .getDeclaredConstructor(SchemeParser.class);
+            } catch (ReflectiveOperationException e) {
+                COMPILED_SCHEME_PARSER_CONSTRUCTOR = null;
+            }
+        }
+        return COMPILED_SCHEME_PARSER_CONSTRUCTOR;
+    }
+
+    abstract ASTNode parseRule(String ruleName);
+
+    boolean matchTerminal(String value)
+    {
+        int index = parser.tokenIndex;
+        if (index < tokens.size() && tokens.valueEquals(index, value)) {
+            parser.tokenIndex++;
+            return true;
+        }
+        parser.recordFailure(index);
+        return false;
+    }
+
+    boolean matchType(TokenType type)
+    {
+        int index = parser.tokenIndex;
+        if (index < tokens.size() && tokens.type(index) == type) {
+            parser.tokenIndex++;
+            return true;
+        }
+        parser.recordFailure(index);
+        return false;
+    }
+
+    boolean matchPattern(Pattern pattern)
+    {
+        int index = parser.tokenIndex;
+        if (index < tokens.size() && pattern.matcher(tokens.value(index)).find()) {
+            parser.tokenIndex++;
+            return true;
+        }
+        parser.recordFailure(index);
+        return false;
+    }
+
+    /*
+     * The following methods match a term of an expression without modifiers,
+     * and add the match to the node.
+     */
+
+    boolean terminal(ASTNode node, String value)
+    {
+        if (!matchTerminal(value)) return false;
+        setTerminalValue(node, parser.tokenIndex - 1);
+        return true;
+    }
+
+    boolean type(ASTNode node, TokenType type)
+    {
+        if (!matchType(type)) return false;
+        setPatternValue(node, parser.tokenIndex - 1);
+        return true;
+    }
+
+    boolean pattern(ASTNode node, Pattern pattern)
+    {
+        if (!matchPattern(pattern)) return false;
+        setPatternValue(node, parser.tokenIndex - 1);
+        return true;
+    }
+
+    static boolean nonterminal(ASTNode node, ASTNode child)
+    {
+        if (child == null) return false;
+        node.addChildren(child);
+        return true;
+    }
+
+    static boolean inline(ASTNode node, ASTNode child)
+    {
+        if (child == null) return false;
+        MatchStack.inlineNode(node, child);
+        return true;
+    }
+
+    /*
+     * The following methods match a term of an expression with modifiers, and
+     * push the match to the stack.
+     */
+
+    static boolean empty(MatchStack matches, int term, int index)
+    {
+        matches.push(term, MatchStack.EMPTY, index, null);
+        return true;
+    }
+
+    boolean terminal(MatchStack matches, int term, String value)
+    {
+        int index = parser.tokenIndex;
+        if (!matchTerminal(value)) return false;
+        matches.push(term, MatchStack.TERMINAL, index, null);
+        return true;
+    }
+
+    boolean type(MatchStack matches, int term, TokenType type)
+    {
+        int index = parser.tokenIndex;
+        if (!matchType(type)) return false;
+        matches.push(term, MatchStack.PATTERN, index, null);
+        return true;
+    }
+
+    boolean pattern(MatchStack matches, int term, Pattern pattern)
+    {
+        int index = parser.tokenIndex;
+        if (!matchPattern(pattern)) return false;
+        matches.push(term, MatchStack.PATTERN, index, null);
+        return true;
+    }
+
+    static boolean nonterminal(MatchStack matches, int term, int index, ASTNode child)
+    {
+        if (child == null) return false;
+        matches.push(term, MatchStack.NODE, index, child);
+        return true;
+    }
+
+    static boolean inline(MatchStack matches, int term, int index, ASTNode child)
+    {
+        if (child == null) return false;
+        matches.push(term, MatchStack.INLINE, index, child);
+        return true;
+    }
+
+    /**
+     * Find the last term, from the given one backwards, which matched more
+     * times than its minimum, and remove its last match, as
+     * `SchemeParser.backtrack` does. Return the index of the term, or -1 if
+     * there's none.
+     */
+    int backtrack(String ruleName, MatchStack matches, int term, int[] minimums)
+    {
+        for (int i = term; i >= 0; i--) {
+            if (matches.counts[i] > minimums[i]) {
+                parser.tokenIndex = matches.pop();
+                parser.countBacktrack(ruleName);
+                return i;
+            }
+            while (matches.counts[i] > 0) {
+                matches.pop();
+            }
+        }
+        return -1;
+    }
+
+    ASTNode build(MatchStack matches)
+    {
+        return matches.build(tokens);
+    }
+
+    /**
+     * Release the match stack of an expression, so the next expression parsed
+     * at the same depth reuses it, and return the node of the expression.
+     */
+    ASTNode exit(MatchStack matches, ASTNode node)
+    {
+        parser.exitExpr(matches);
+        return node;
+    }
+
+    void setTerminalValue(ASTNode node, int index)
+    {
+        MatchStack.setTerminalValue(node, tokens, index);
+    }
+
+    void setPatternValue(ASTNode node, int index)
+    {
+        MatchStack.setPatternValue(node, tokens, index);
+    }
+}
@@ -0,0 +1,57 @@
+package transpiler.scheme;
+
+import transpiler.ASTNode;
+
+/**
+ * A datum read from the tokens: an atom, a list, a vector or a bytevector with
+ * its elements, or an abbreviation, such as "'a", with the datum after its
+ * prefix. Each one spans the tokens from `start` to `end`.
+ */
+class Datum
+{
+    static int ATOM = 0;
+    static int LIST = 1;
+    static int VECTOR = 2;
+    static int BYTEVECTOR = 3;
+    static int ABBREVIATION = 4;
+
+    int kind;
+    int start;
+    int end;
+    Datum[] elements;
+    // Number of levels of data nested in it, which is 0 for an atom.
+    int depth;
+    // Nodes of the rules which `FormClassifier` memoizes, `FormClassifier.FAILED`
+    // if the rule didn't match, or null if it wasn't tried yet.
+    ASTNode expression;
+    ASTNode definition;
+    ASTNode datum;
+    ASTNode commandOrDefinition;
+
+    public Datum(int kind, int start)
+    {
+        this.kind = kind;
+        this.start = start;
+        this.end = start + 1;
+        this.elements = null;
+        this.depth = 0;
+        this.expression = null;
+        this.definition = null;
+        this.datum = null;
+        this.commandOrDefinition = null;
+    }
+
+    int size()
+    {
+        return elements == null ? 0 : elements.length;
+    }
+
+    /**
+     * Return the element, or null past the last one, where the closing
+     * parenthesis is.
+     */
+    Datum element(int index)
+    {
+        return index < size() ? elements[index] : null;
+    }
+}
@@ -0,0 +1,90 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the top-level data of the tokens in a single pass, matching the
+ * parentheses with a stack, so it takes time linear in the number of tokens
+ * however the code is nested.
+ */
+class DatumReader
+{
+    TokenBuffer tokens;
+    // Open lists and abbreviations, and the elements of the lists so far.
+    List<Datum> open;
+    List<List<Datum>> openElements;
+    List<Datum> data;
+
+    public DatumReader(TokenBuffer tokens)
+    {
+        this.tokens = tokens;
+        this.open = new ArrayList<>();
+        this.openElements = new ArrayList<>();
+        this.data = new ArrayList<>();
+    }
+
+    /**
+     * Return the top-level data, or null if the parentheses or the
+     * abbreviations aren't balanced.
+     */
+    List<Datum> read()
+    {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) != TokenType.DELIMITER || tokens.valueEquals(i, ".")) {
+                add(new Datum(Datum.ATOM, i));
+            } else if (tokens.valueEquals(i, "(")) {
+                push(new Datum(Datum.LIST, i));
+            } else if (tokens.valueEquals(i, "#(")) {
+                push(new Datum(Datum.VECTOR, i));
+            } else if (tokens.valueEquals(i, "#u8(")) {
+                push(new Datum(Datum.BYTEVECTOR, i));
+            } else if (tokens.valueEquals(i, ")")) {
+                int last = open.size() - 1;
+                if (last < 0 || open.get(last).kind == Datum.ABBREVIATION) return null;
+
+                Datum list = open.remove(last);
+                list.elements = openElements.remove(last).toArray(new Datum[0]);
+                list.end = i + 1;
+                for (Datum element : list.elements) {
+                    list.depth = Math.max(list.depth, element.depth);
+                }
+                list.depth++;
+                add(list);
+            } else {
+                push(new Datum(Datum.ABBREVIATION, i));
+            }
+        }
+        return open.isEmpty() ? data : null;
+    }
+
+    void push(Datum datum)
+    {
+        open.add(datum);
+        openElements.add(datum.kind == Datum.ABBREVIATION ? null : new ArrayList<>());
+    }
+
+    /**
+     * Add a complete datum to the open list, or to the top-level data, after
+     * completing the abbreviations it belongs to.
+     */
+    void add(Datum datum)
+    {
+        int last = open.size() - 1;
+        while (last >= 0 && open.get(last).kind == Datum.ABBREVIATION) {
+            Datum abbreviation = open.remove(last);
+            openElements.remove(last);
+            abbreviation.elements = new Datum[] {datum};
+            abbreviation.end = datum.end;
+            abbreviation.depth = datum.depth + 1;
+            datum = abbreviation;
+            last--;
+        }
+
+        if (last < 0) {
+            data.add(datum);
+        } else {
+            openElements.get(last).add(datum);
+        }
+    }
+}
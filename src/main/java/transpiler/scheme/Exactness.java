@@ -0,0 +1,8 @@
+package transpiler.scheme;
+
+public enum Exactness {
+    // There's no "#e" or "#i" prefix.
+    UNSPECIFIED,
+    EXACT,
+    INEXACT,
+};
@@ -0,0 +1,25 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class Expr
+{
+    List<Term> terms;
+
+    public Expr()
+    {
+        this.terms = new ArrayList<Term>();
+    }
+
+    public Expr(Term... terms)
+    {
+        this.terms = Arrays.asList(terms);
+    }
+
+    public Expr(List<Term> terms)
+    {
+        this.terms = terms;
+    }
+}
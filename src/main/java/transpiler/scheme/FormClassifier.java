@@ -0,0 +1,812 @@
+package transpiler.scheme;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import transpiler.ASTNode;
+
+/**
+ * Builds the nodes of the default grammar from the data read by `DatumReader`,
+ * choosing each special form by its head symbol instead of backtracking
+ * through the tokens.
+ *
+ * Each method gives the node of a rule at a datum, or null if the rule doesn't
+ * match it, as `SchemeParser.parseRule` would. The rules of the default grammar
+ * match whole data, so their alternatives and repetitions are decided by
+ * looking at the elements of a list. The results of EXPRESSION, DEFINITION,
+ * DATUM and COMMAND_OR_DEFINITION are kept in the data, so every datum is classified a bounded number of
+ * times and the time is linear in the number of tokens.
+ *
+ * The rules call each other for the data inside their datum, so a form nested
+ * deeper than `NESTING_LIMIT` has its data classified first, from the innermost
+ * ones out, with an explicit stack. Each rule then finds the results of the
+ * data inside its datum already kept, and the calls never go deeper than a few
+ * rules, however the form is nested.
+ */
+class FormClassifier
+{
+    // Result of a memoized rule which didn't match.
+    static ASTNode FAILED = new ASTNode();
+    static int NESTING_LIMIT = 128;
+
+    SchemeParser parser;
+    TokenBuffer tokens;
+    Map<String, Rule> definitions;
+    // Set when a pattern matches the first token of a datum which isn't an
+    // atom, which the grammar would split, so the form is parsed by it.
+    boolean unsupported;
+
+    public FormClassifier(SchemeParser parser)
+    {
+        this.parser = parser;
+        this.tokens = parser.tokens;
+        this.definitions = parser.definitions;
+        this.unsupported = false;
+    }
+
+    /**
+     * Return the PROGRAM node, or null if the code isn't balanced or one of the
+     * forms doesn't match, in which case the grammar reports the error.
+     */
+    ASTNode classifyProgram()
+    {
+        List<Datum> data = new DatumReader(tokens).read();
+        if (data == null || data.isEmpty()) return null;
+
+        ASTNode program = new ASTNode();
+        int form = 0;
+        while (form < data.size()) {
+            ASTNode node = importDeclaration(data.get(form));
+            if (unsupported) return null;
+            if (node == null) break;
+            program.addChildren(node);
+            form++;
+        }
+        // Without any other form, the last import is parsed as one.
+        if (form == data.size()) {
+            program.children.remove(--form);
+        }
+
+        for (; form < data.size(); form++) {
+            Datum datum = data.get(form);
+            if (datum.depth > NESTING_LIMIT) classifyInnerData(datum);
+            ASTNode node = commandOrDefinition(datum);
+            if (unsupported) {
+                unsupported = false;
+                node = parseByGrammar(datum);
+            }
+            if (node == null) return null;
+            setParents(node);
+            program.addChildren(node);
+        }
+
+        parser.tokenIndex = tokens.size();
+        return finish("PROGRAM", 0, program);
+    }
+
+    ASTNode parseByGrammar(Datum datum)
+    {
+        parser.tokenIndex = datum.start;
+        ASTNode node = datum.depth > NESTING_LIMIT && parser.iterativeParser == null ?
+            new IterativeParser(parser).parseRule("COMMAND_OR_DEFINITION")
+            : parser.parseRule("COMMAND_OR_DEFINITION");
+        return parser.tokenIndex == datum.end ? node : null;
+    }
+
+    /**
+     * Keep the results of the memoized rules for the data inside the form,
+     * from the innermost ones out, which are the reverse of the order they're
+     * reached from the form.
+     */
+    void classifyInnerData(Datum form)
+    {
+        List<Datum> data = new ArrayList<>();
+        ArrayDeque<Datum> pending = new ArrayDeque<>();
+        pending.push(form);
+        while (!pending.isEmpty()) {
+            Datum datum = pending.pop();
+            data.add(datum);
+            for (int i = 0; i < datum.size(); i++) {
+                pending.push(datum.elements[i]);
+            }
+        }
+
+        for (int i = data.size() - 1; i > 0; i--) {
+            Datum datum = data.get(i);
+            expression(datum);
+            datum(datum);
+            // A syntax definition fails before its data are classified, so it's
+            // only classified where the grammar would try it.
+            if (!isForm(new ASTNode(), datum, "define-syntax")) definition(datum);
+            if (isForm(new ASTNode(), datum, "begin")) commandOrDefinition(datum);
+        }
+    }
+
+    /**
+     * Point every node to its parent, since memoized nodes can be added to the
+     * nodes of alternatives which didn't match before the one which did.
+     */
+    static void setParents(ASTNode root)
+    {
+        ArrayDeque<ASTNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            node.setChildren(node.children);
+            for (ASTNode child : node.children) {
+                nodes.push(child);
+            }
+        }
+    }
+
+    /*
+     * Helpers for terminals, patterns and nodes.
+     */
+
+    ASTNode finish(String ruleName, int index, ASTNode node)
+    {
+        node.type = ruleName;
+        node.position = tokens.position(index);
+        node.lineIndex = tokens.lineIndex();
+        return node;
+    }
+
+    ASTNode node(String ruleName, int index, ASTNode... children)
+    {
+        ASTNode node = new ASTNode();
+        node.addChildren(children);
+        return finish(ruleName, index, node);
+    }
+
+    /**
+     * Return the node of a rule with a single child, or null without it.
+     */
+    ASTNode wrap(String ruleName, Datum datum, ASTNode child)
+    {
+        return child == null ? null : node(ruleName, datum.start, child);
+    }
+
+    /**
+     * Return whether the datum is the given terminal, and set the value of the
+     * node to it if it's an identifier.
+     */
+    boolean terminal(ASTNode node, Datum datum, String value)
+    {
+        if (datum == null || datum.kind != Datum.ATOM || !tokens.valueEquals(datum.start, value)) {
+            return false;
+        }
+        MatchStack.setTerminalValue(node, tokens, datum.start);
+        return true;
+    }
+
+    static boolean isList(Datum datum)
+    {
+        return datum != null && datum.kind == Datum.LIST;
+    }
+
+    /**
+     * Return whether the datum is a list whose first element is the terminal.
+     */
+    boolean isForm(ASTNode node, Datum datum, String keyword)
+    {
+        return isList(datum) && terminal(node, datum.element(0), keyword);
+    }
+
+    /**
+     * Return the node of a rule whose only alternative is a pattern, such as
+     * IDENTIFIER.
+     */
+    ASTNode pattern(String ruleName, Datum datum)
+    {
+        if (datum == null) return null;
+
+        Term term = definitions.get(ruleName).exprs.get(0).terms.get(0);
+        int index = datum.start;
+        boolean matched = term.tokenType != null ?
+            tokens.type(index) == term.tokenType
+            : term.pattern.matcher(tokens.value(index)).find();
+        if (!matched) return null;
+        if (datum.kind != Datum.ATOM) {
+            unsupported = true;
+            return null;
+        }
+
+        ASTNode node = new ASTNode();
+        MatchStack.setPatternValue(node, tokens, index);
+        return finish(ruleName, index, node);
+    }
+
+    ASTNode identifier(Datum datum)
+    {
+        return pattern("IDENTIFIER", datum);
+    }
+
+    ASTNode wrapIdentifier(String ruleName, Datum datum)
+    {
+        return wrap(ruleName, datum, identifier(datum));
+    }
+
+    /**
+     * Return the index of the first element, from the given one, which isn't
+     * an identifier.
+     */
+    int identifiersEnd(Datum datum, int from)
+    {
+        int end = from;
+        while (end < datum.size() && identifier(datum.elements[end]) != null) {
+            end++;
+        }
+        return end;
+    }
+
+    boolean dot(Datum datum)
+    {
+        return datum != null && datum.kind == Datum.ATOM && tokens.valueEquals(datum.start, ".");
+    }
+
+    /**
+     * Return the position where the element starts, or the closing parenthesis
+     * of the list after the last element.
+     */
+    static int elementStart(Datum list, int index)
+    {
+        return index < list.size() ? list.elements[index].start : list.end - 1;
+    }
+
+    /*
+     * Programs and definitions.
+     */
+
+    ASTNode commandOrDefinition(Datum datum)
+    {
+        if (datum.commandOrDefinition == null) {
+            ASTNode node = classifyCommandOrDefinition(datum);
+            datum.commandOrDefinition = node == null ? FAILED : node;
+        }
+        return datum.commandOrDefinition == FAILED ? null : datum.commandOrDefinition;
+    }
+
+    ASTNode classifyCommandOrDefinition(Datum datum)
+    {
+        ASTNode node = definition(datum);
+        if (node != null) return wrap("COMMAND_OR_DEFINITION", datum, node);
+
+        node = new ASTNode();
+        if (isForm(node, datum, "begin") && datum.size() > 1) {
+            boolean matched = true;
+            for (int i = 1; i < datum.size() && matched; i++) {
+                ASTNode child = commandOrDefinition(datum.elements[i]);
+                matched = child != null;
+                if (matched) node.addChildren(child);
+            }
+            if (matched) return finish("COMMAND_OR_DEFINITION", datum.start, node);
+        }
+
+        return wrap("COMMAND_OR_DEFINITION", datum, command(datum));
+    }
+
+    ASTNode command(Datum datum)
+    {
+        return wrap("COMMAND", datum, expression(datum));
+    }
+
+    ASTNode definition(Datum datum)
+    {
+        if (datum.definition == null) {
+            ASTNode node = classifyDefinition(datum);
+            datum.definition = node == null ? FAILED : node;
+        }
+        return datum.definition == FAILED ? null : datum.definition;
+    }
+
+    ASTNode classifyDefinition(Datum datum)
+    {
+        if (!isList(datum)) return null;
+
+        ASTNode node = new ASTNode();
+        if (terminal(node, datum.element(0), "define")) {
+            // (define <identifier> <expression>)
+            ASTNode name = identifier(datum.element(1));
+            ASTNode value = name == null ? null : expression(datum.element(2));
+            if (value != null && datum.size() == 3) {
+                node.addChildren(name, value);
+                return finish("DEFINITION", datum.start, node);
+            }
+
+            // (define (<identifier> <def formals>) <body>)
+            Datum header = datum.element(1);
+            name = isList(header) ? identifier(header.element(0)) : null;
+            ASTNode formals = name == null ? null : defFormals(header);
+            ASTNode body = formals == null ? null : body(datum, 2);
+            if (body != null) {
+                node = new ASTNode();
+                terminal(node, datum.element(0), "define");
+                node.addChildren(name, formals, body);
+                return finish("DEFINITION", datum.start, node);
+            }
+        }
+
+        node = new ASTNode();
+        if (terminal(node, datum.element(0), "define-syntax")) {
+            throw parser.undefinedRule("KEYWORD");
+        }
+
+        node = new ASTNode();
+        if (terminal(node, datum.element(0), "define-values")) {
+            ASTNode formals = formals(datum.element(1));
+            ASTNode body = formals == null ? null : body(datum, 2);
+            if (body != null) {
+                node.addChildren(formals, body);
+                return finish("DEFINITION", datum.start, node);
+            }
+        }
+
+        node = new ASTNode();
+        if (terminal(node, datum.element(0), "define-record-type")) {
+            ASTNode recordType = identifier(datum.element(1));
+            ASTNode constructor = recordType == null ? null : constructor(datum.element(2));
+            ASTNode predicate = constructor == null ? null : identifier(datum.element(3));
+            if (predicate != null) {
+                node.addChildren(recordType, constructor, predicate);
+                int i = 4;
+                ASTNode fieldSpec;
+                while ((fieldSpec = fieldSpec(datum, i)) != null) {
+                    node.addChildren(fieldSpec);
+                    i += datum.elements[i].kind == Datum.LIST ? 1 : 2;
+                }
+                if (i == datum.size()) return finish("DEFINITION", datum.start, node);
+            }
+        }
+
+        node = new ASTNode();
+        if (terminal(node, datum.element(0), "begin")) {
+            for (int i = 1; i < datum.size(); i++) {
+                ASTNode child = definition(datum.elements[i]);
+                if (child == null) return null;
+                node.addChildren(child);
+            }
+            return finish("DEFINITION", datum.start, node);
+        }
+        return null;
+    }
+
+    /**
+     * Return the DEF_FORMALS after the name in the header of a procedure
+     * definition, or null unless they're all of the rest of it.
+     */
+    ASTNode defFormals(Datum header)
+    {
+        int start = elementStart(header, 1);
+        int end = identifiersEnd(header, 1);
+        ASTNode node = new ASTNode();
+        for (int i = 1; i < end; i++) {
+            node.addChildren(identifier(header.elements[i]));
+        }
+
+        // The first alternative ends with ". <identifier>", so it matches
+        // whenever they follow the identifiers.
+        ASTNode rest = dot(header.element(end)) ? wrapIdentifier("VAR_PARAMETER", header.element(end + 1))
+            : null;
+        if (rest != null) {
+            node.addChildren(rest);
+            end += 2;
+        }
+        return end == header.size() ? finish("DEF_FORMALS", start, node) : null;
+    }
+
+    ASTNode constructor(Datum datum)
+    {
+        if (!isList(datum)) return null;
+
+        ASTNode name = identifier(datum.element(0));
+        if (name == null || identifiersEnd(datum, 1) != datum.size()) return null;
+
+        ASTNode node = node("CONSTRUCTOR", datum.start, name);
+        for (int i = 1; i < datum.size(); i++) {
+            node.addChildren(wrapIdentifier("FIELD_NAME", datum.elements[i]));
+        }
+        return node;
+    }
+
+    /**
+     * Return the FIELD_SPEC which starts at the element of the record type
+     * definition, which is either two identifiers or a list of three.
+     */
+    ASTNode fieldSpec(Datum definition, int index)
+    {
+        Datum datum = definition.element(index);
+        if (datum == null) return null;
+
+        if (datum.kind == Datum.LIST) {
+            if (datum.size() != 3 || identifiersEnd(datum, 0) != 3) return null;
+            return node("FIELD_SPEC", datum.start,
+                        wrapIdentifier("FIELD_NAME", datum.elements[0]),
+                        wrapIdentifier("ACCESSOR", datum.elements[1]),
+                        wrapIdentifier("MUTATOR", datum.elements[2]));
+        }
+
+        ASTNode fieldName = wrapIdentifier("FIELD_NAME", datum);
+        ASTNode accessor = fieldName == null ?
+            null : wrapIdentifier("ACCESSOR", definition.element(index + 1));
+        return accessor == null ? null : node("FIELD_SPEC", datum.start, fieldName, accessor);
+    }
+
+    /*
+     * Libraries.
+     */
+
+    ASTNode importDeclaration(Datum datum)
+    {
+        ASTNode node = new ASTNode();
+        if (!isForm(node, datum, "import") || datum.size() < 2) return null;
+
+        for (int i = 1; i < datum.size(); i++) {
+            ASTNode importSet = importSet(datum.elements[i]);
+            if (importSet == null) return null;
+            node.addChildren(importSet);
+        }
+        return finish("IMPORT_DECLARATION", datum.start, node);
+    }
+
+    /**
+     * Return the IMPORT_SET of the datum. The import sets which have another
+     * one inside them are found from the outermost one in, down to a library
+     * name, and their nodes are built from the innermost one out.
+     */
+    ASTNode importSet(Datum datum)
+    {
+        List<Datum> outerData = new ArrayList<>();
+        List<ASTNode> outerNodes = new ArrayList<>();
+        List<String> keywords = new ArrayList<>();
+        ASTNode libraryName;
+        while ((libraryName = libraryName(datum)) == null) {
+            ASTNode node = new ASTNode();
+            String keyword = isList(datum) ? importSetKeyword(node, datum) : null;
+            if (keyword == null) return null;
+            outerData.add(datum);
+            outerNodes.add(node);
+            keywords.add(keyword);
+            datum = datum.element(1);
+        }
+
+        ASTNode importSet = wrap("IMPORT_SET", datum, libraryName);
+        for (int i = outerData.size() - 1; i >= 0 && importSet != null; i--) {
+            importSet = importSet(outerNodes.get(i), keywords.get(i), outerData.get(i), importSet);
+        }
+        return importSet;
+    }
+
+    /**
+     * Return the keyword of an import set which has another one inside it, and
+     * set the value of the node to it, or null if it isn't one.
+     */
+    String importSetKeyword(ASTNode node, Datum datum)
+    {
+        for (String keyword : new String[] {"only", "except", "prefix", "rename"}) {
+            if (terminal(node, datum.element(0), keyword)) return keyword;
+        }
+        return null;
+    }
+
+    /**
+     * Return the IMPORT_SET of the keyword around the import set inside it, or
+     * null if the rest of the datum doesn't match.
+     */
+    ASTNode importSet(ASTNode node, String keyword, Datum datum, ASTNode importSet)
+    {
+        node.addChildren(importSet);
+        if (keyword.equals("prefix")) {
+            ASTNode prefix = identifier(datum.element(2));
+            if (prefix == null || datum.size() != 3) return null;
+            node.addChildren(prefix);
+        } else {
+            if (datum.size() < 3) return null;
+            for (int i = 2; i < datum.size(); i++) {
+                ASTNode child = keyword.equals("rename") ?
+                    importRenaming(datum.elements[i]) : identifier(datum.elements[i]);
+                if (child == null) return null;
+                node.addChildren(child);
+            }
+        }
+        return finish("IMPORT_SET", datum.start, node);
+    }
+
+    ASTNode libraryName(Datum datum)
+    {
+        if (!isList(datum) || datum.size() == 0) return null;
+
+        ASTNode node = new ASTNode();
+        for (Datum element : datum.elements) {
+            ASTNode part = identifier(element);
+            if (part == null) part = pattern("UINTEGER_10", element);
+            if (part == null) return null;
+            node.addChildren(wrap("LIBRARY_NAME_PART", element, part));
+        }
+        return finish("LIBRARY_NAME", datum.start, node);
+    }
+
+    ASTNode importRenaming(Datum datum)
+    {
+        if (!isList(datum) || datum.size() != 2 || identifiersEnd(datum, 0) != 2) return null;
+        return node("IMPORT_RENAMING", datum.start,
+                    identifier(datum.elements[0]),
+                    identifier(datum.elements[1]));
+    }
+
+    /*
+     * External representations.
+     */
+
+    ASTNode datum(Datum datum)
+    {
+        if (datum == null) return null;
+        if (datum.datum == null) {
+            ASTNode node = classifyDatum(datum);
+            datum.datum = node == null ? FAILED : node;
+        }
+        return datum.datum == FAILED ? null : datum.datum;
+    }
+
+    ASTNode classifyDatum(Datum datum)
+    {
+        ASTNode simpleDatum = null;
+        for (String ruleName : new String[] {"BOOLEAN", "NUMBER", "CHARACTER", "STRING",
+                                             "IDENTIFIER", "BYTEVECTOR"}) {
+            simpleDatum = pattern(ruleName, datum);
+            if (simpleDatum != null) break;
+        }
+        if (simpleDatum != null) {
+            return wrap("DATUM", datum, wrap("SIMPLE_DATUM", datum, simpleDatum));
+        }
+
+        ASTNode compoundDatum = list(datum);
+        if (compoundDatum == null) compoundDatum = vector(datum);
+        if (compoundDatum == null) compoundDatum = abbreviation(datum);
+        return wrap("DATUM", datum, wrap("COMPOUND_DATUM", datum, compoundDatum));
+    }
+
+    ASTNode list(Datum datum)
+    {
+        if (!isList(datum)) return null;
+
+        // (<datum>*), or else (<datum>+ . <datum>).
+        int end = 0;
+        while (end < datum.size() && datum(datum.elements[end]) != null) {
+            end++;
+        }
+        ASTNode rest = null;
+        if (end < datum.size()) {
+            if (end == 0 || !dot(datum.elements[end]) || end + 2 != datum.size()) return null;
+            rest = datum(datum.elements[end + 1]);
+            if (rest == null) return null;
+        }
+
+        ASTNode node = new ASTNode();
+        for (int i = 0; i < end; i++) {
+            node.addChildren(datum(datum.elements[i]));
+        }
+        if (rest != null) node.addChildren(rest);
+        return finish("LIST", datum.start, node);
+    }
+
+    ASTNode vector(Datum datum)
+    {
+        if (datum.kind != Datum.VECTOR) return null;
+
+        ASTNode node = new ASTNode();
+        for (Datum element : datum.elements) {
+            ASTNode child = datum(element);
+            if (child == null) return null;
+            node.addChildren(child);
+        }
+        return finish("VECTOR", datum.start, node);
+    }
+
+    ASTNode abbreviation(Datum datum)
+    {
+        if (datum.kind != Datum.ABBREVIATION) return null;
+
+        ASTNode inner = datum(datum.elements[0]);
+        if (inner == null) return null;
+        return node("ABBREVIATION", datum.start, node("ABBREV_PREFIX", datum.start), inner);
+    }
+
+    /*
+     * Expressions.
+     */
+
+    ASTNode expression(Datum datum)
+    {
+        if (datum == null) return null;
+        if (datum.expression == null) {
+            ASTNode node = classifyExpression(datum);
+            datum.expression = node == null ? FAILED : node;
+        }
+        return datum.expression == FAILED ? null : datum.expression;
+    }
+
+    ASTNode classifyExpression(Datum datum)
+    {
+        ASTNode node = identifier(datum);
+        if (node == null) node = literal(datum);
+        if (node == null) node = lambdaExpression(datum);
+        if (node == null) node = conditional(datum);
+        if (node == null) node = assignment(datum);
+        if (node == null) node = includer(datum);
+        if (node == null) node = procedureCall(datum);
+        return wrap("EXPRESSION", datum, node);
+    }
+
+    ASTNode literal(Datum datum)
+    {
+        ASTNode node = quotation(datum);
+        if (node == null) node = selfEvaluating(datum);
+        return wrap("LITERAL", datum, node);
+    }
+
+    ASTNode quotation(Datum datum)
+    {
+        if (datum.kind == Datum.ABBREVIATION && tokens.valueEquals(datum.start, "'")) {
+            return wrap("QUOTATION", datum, datum(datum.elements[0]));
+        }
+
+        ASTNode node = new ASTNode();
+        if (isForm(node, datum, "quote") && datum.size() == 2) {
+            ASTNode quoted = datum(datum.elements[1]);
+            if (quoted == null) return null;
+            node.addChildren(quoted);
+            return finish("QUOTATION", datum.start, node);
+        }
+        return null;
+    }
+
+    ASTNode selfEvaluating(Datum datum)
+    {
+        ASTNode node = pattern("BOOLEAN", datum);
+        if (node == null) node = pattern("NUMBER", datum);
+        if (node == null) node = vector(datum);
+        if (node == null) node = pattern("CHARACTER", datum);
+        if (node == null) node = pattern("STRING", datum);
+        if (node == null) node = pattern("BYTEVECTOR", datum);
+        return wrap("SELF_EVALUATING", datum, node);
+    }
+
+    ASTNode lambdaExpression(Datum datum)
+    {
+        ASTNode node = new ASTNode();
+        if (!isForm(node, datum, "lambda")) return null;
+
+        ASTNode formals = formals(datum.element(1));
+        ASTNode body = formals == null ? null : body(datum, 2);
+        if (body == null) return null;
+        node.addChildren(formals, body);
+        return finish("LAMBDA_EXPRESSION", datum.start, node);
+    }
+
+    ASTNode formals(Datum datum)
+    {
+        if (datum == null) return null;
+
+        ASTNode node = new ASTNode();
+        if (isList(datum)) {
+            // (<identifier>*), or else (<identifier>+ . <identifier>).
+            int end = identifiersEnd(datum, 0);
+            for (int i = 0; i < end; i++) {
+                node.addChildren(identifier(datum.elements[i]));
+            }
+            if (end == datum.size()) return finish("FORMALS", datum.start, node);
+
+            ASTNode rest = end > 0 && dot(datum.elements[end]) ?
+                wrapIdentifier("VAR_PARAMETER", datum.element(end + 1)) : null;
+            if (rest == null || end + 2 != datum.size()) return null;
+            node.addChildren(rest);
+            return finish("FORMALS", datum.start, node);
+        }
+
+        return wrap("FORMALS", datum, identifier(datum));
+    }
+
+    /**
+     * Return the BODY made of the elements of the list from the given one, or
+     * null unless it's all of them. The definitions are matched greedily, and
+     * the last of them is taken as an expression if the sequence after them
+     * would be empty.
+     */
+    ASTNode body(Datum datum, int from)
+    {
+        int definitionsEnd = from;
+        while (definitionsEnd < datum.size() && definition(datum.elements[definitionsEnd]) != null) {
+            definitionsEnd++;
+        }
+
+        for (int sequenceStart = definitionsEnd; sequenceStart >= from; sequenceStart--) {
+            int end = sequenceStart;
+            while (end < datum.size() && expression(datum.elements[end]) != null) {
+                end++;
+            }
+            if (end == sequenceStart) continue;
+            if (end != datum.size()) return null;
+
+            ASTNode sequence = node("SEQUENCE", datum.elements[sequenceStart].start);
+            for (int i = sequenceStart; i < end - 1; i++) {
+                sequence.addChildren(command(datum.elements[i]));
+            }
+            sequence.addChildren(expression(datum.elements[end - 1]));
+
+            ASTNode body = node("BODY", datum.elements[from].start);
+            for (int i = from; i < sequenceStart; i++) {
+                body.addChildren(definition(datum.elements[i]));
+            }
+            body.addChildren(sequence);
+            return body;
+        }
+        return null;
+    }
+
+    ASTNode conditional(Datum datum)
+    {
+        ASTNode node = new ASTNode();
+        if (!isForm(node, datum, "if")) return null;
+
+        ASTNode test = expression(datum.element(1));
+        ASTNode consequent = test == null ? null : expression(datum.element(2));
+        if (consequent == null) return null;
+
+        ASTNode alternate = expression(datum.element(3));
+        if (datum.size() != (alternate == null ? 3 : 4)) return null;
+
+        node.addChildren(node("TEST", datum.elements[1].start, test),
+                         node("CONSEQUENT", datum.elements[2].start, consequent),
+                         alternate == null ?
+                         node("ALTERNATE", elementStart(datum, 3))
+                         : node("ALTERNATE", datum.elements[3].start, alternate));
+        return finish("CONDITIONAL", datum.start, node);
+    }
+
+    ASTNode assignment(Datum datum)
+    {
+        ASTNode node = new ASTNode();
+        if (!isForm(node, datum, "set!")) return null;
+
+        ASTNode name = identifier(datum.element(1));
+        ASTNode value = name == null ? null : expression(datum.element(2));
+        if (value == null || datum.size() != 3) return null;
+        node.addChildren(name, value);
+        return finish("ASSIGNMENT", datum.start, node);
+    }
+
+    ASTNode includer(Datum datum)
+    {
+        for (String keyword : new String[] {"include", "include-ci"}) {
+            ASTNode node = new ASTNode();
+            if (!isForm(node, datum, keyword) || datum.size() < 2) continue;
+
+            boolean matched = true;
+            for (int i = 1; i < datum.size() && matched; i++) {
+                ASTNode string = pattern("STRING", datum.elements[i]);
+                matched = string != null;
+                if (matched) node.addChildren(string);
+            }
+            if (matched) return finish("INCLUDER", datum.start, node);
+        }
+        return null;
+    }
+
+    ASTNode procedureCall(Datum datum)
+    {
+        if (!isList(datum)) return null;
+
+        ASTNode operator = wrap("OPERATOR", datum.element(0), expression(datum.element(0)));
+        if (operator == null) return null;
+
+        ASTNode node = node("PROCEDURE_CALL", datum.start, operator);
+        for (int i = 1; i < datum.size(); i++) {
+            Datum operand = datum.elements[i];
+            ASTNode expression = expression(operand);
+            if (expression == null) return null;
+            node.addChildren(node("OPERAND", operand.start, expression));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,104 @@
+package transpiler.scheme;
+
+/**
+ * Splitter of tokens into top-level forms, which are given to it one token at
+ * a time. A form ends at the token which balances its parentheses, unless it's
+ * an abbreviation prefix, such as "'", which belongs to the datum after it. An
+ * unexpected ")" ends the form where it is, which then fails to parse.
+ */
+class FormSplitter
+{
+    static int OTHER = 0;
+    static int OPEN = 1;
+    static int CLOSE = 2;
+    static int PREFIX = 3;
+
+    int depth;
+    boolean prefixed;
+    // Whether a ")" was found outside any parentheses.
+    boolean unbalanced;
+
+    public FormSplitter()
+    {
+        this.depth = 0;
+        this.prefixed = false;
+        this.unbalanced = false;
+    }
+
+    /**
+     * Add the token at the index, and return whether it ends a form.
+     */
+    boolean add(TokenBuffer tokens, int index)
+    {
+        int kind = OTHER;
+        if (tokens.type(index) == TokenType.DELIMITER) {
+            if (tokens.valueEquals(index, "(")
+                || tokens.valueEquals(index, "#(")
+                || tokens.valueEquals(index, "#u8(")) {
+                kind = OPEN;
+            } else if (tokens.valueEquals(index, ")")) {
+                kind = CLOSE;
+            } else if (tokens.valueEquals(index, "'")
+                       || tokens.valueEquals(index, "`")
+                       || tokens.valueEquals(index, ",")
+                       || tokens.valueEquals(index, ",@")) {
+                kind = PREFIX;
+            }
+        }
+        return add(kind);
+    }
+
+    /**
+     * Add the token, and return whether it ends a form.
+     */
+    boolean add(Token token)
+    {
+        int kind = OTHER;
+        if (token.type == TokenType.DELIMITER) {
+            String value = token.value;
+            if (value.equals("(") || value.equals("#(") || value.equals("#u8(")) {
+                kind = OPEN;
+            } else if (value.equals(")")) {
+                kind = CLOSE;
+            } else if (value.equals("'")
+                       || value.equals("`")
+                       || value.equals(",")
+                       || value.equals(",@")) {
+                kind = PREFIX;
+            }
+        }
+        return add(kind);
+    }
+
+    boolean add(int kind)
+    {
+        if (kind == OPEN) {
+            depth++;
+        } else if (kind == CLOSE) {
+            if (depth == 0) unbalanced = true;
+            depth--;
+        }
+        prefixed = kind == PREFIX;
+
+        if (depth > 0 || prefixed) return false;
+        depth = 0;
+        return true;
+    }
+
+    /**
+     * Start a new form, leaving the current one where it is.
+     */
+    void reset()
+    {
+        depth = 0;
+        prefixed = false;
+    }
+
+    /**
+     * Return whether a form was started and didn't end.
+     */
+    boolean inForm()
+    {
+        return depth > 0 || prefixed;
+    }
+}
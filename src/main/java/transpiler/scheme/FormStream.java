@@ -0,0 +1,148 @@
+package transpiler.scheme;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import transpiler.ASTNode;
+import transpiler.LineIndex;
+import transpiler.WrapperChains;
+
+/**
+ * Top-level forms of a program, each parsed as a COMMAND_OR_DEFINITION as soon
+ * as its tokens are read. Only the tokens of the form being parsed are kept, so
+ * a program can be parsed while it's read, in as much memory as its largest
+ * form takes.
+ *
+ * The forms are split at the balanced parentheses of the tokens by a
+ * `FormSplitter`, as in `ParallelParse`, and are the children which `SchemeParser.parse` would give
+ * the PROGRAM node. The leading imports are held until the first other form,
+ * since without one the last of them is parsed as a COMMAND_OR_DEFINITION.
+ *
+ * When the tokens come with the line index of their code, the forms are parsed
+ * at their positions in it, so the nodes and the errors have their locations in
+ * the code rather than in the form. Each form has the index from its first
+ * line on, so the lines of the forms before it aren't kept.
+ */
+class FormStream implements Iterator<ASTNode>
+{
+    Iterator<Token> tokens;
+    // Lines of the code of the tokens from the form being read, or null if
+    // their positions aren't known.
+    LineIndex lineIndex;
+    Queue<ASTNode> forms;
+    // Imports read before the first other form.
+    List<ASTNode> imports;
+    List<Token> importTokens;
+    LineIndex importLineIndex;
+    boolean importsEnded;
+    // Profile of the parsers of the forms, or null if they aren't profiled.
+    ParserProfile profile;
+    // Wrapper chains shared by the compact forms, or null if they aren't
+    // compact.
+    WrapperChains wrapperChains;
+
+    public FormStream(Iterator<Token> tokens, ParserProfile profile)
+    {
+        this(tokens, profile, false);
+    }
+
+    public FormStream(Iterator<Token> tokens, ParserProfile profile, boolean compact)
+    {
+        this.tokens = tokens;
+        this.lineIndex = null;
+        this.profile = profile;
+        this.forms = new ArrayDeque<>();
+        this.imports = new ArrayList<>();
+        this.importTokens = null;
+        this.importLineIndex = null;
+        this.importsEnded = false;
+        this.wrapperChains = compact ? new WrapperChains() : null;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (forms.isEmpty() && tokens.hasNext()) {
+            parseForm(readForm());
+        }
+        if (forms.isEmpty() && !imports.isEmpty()) {
+            // As in the sequential parse, the program needs a form which isn't
+            // an import, so the last import is taken as one.
+            imports.remove(imports.size() - 1);
+            forms.addAll(imports);
+            imports.clear();
+            forms.add(parse(importTokens, importLineIndex, "COMMAND_OR_DEFINITION"));
+        }
+        return !forms.isEmpty();
+    }
+
+    @Override
+    public ASTNode next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return forms.remove();
+    }
+
+    void parseForm(List<Token> form)
+    {
+        if (!importsEnded) {
+            SchemeParser parser = parser(form, lineIndex);
+            ASTNode node = parser.parseRule("IMPORT_DECLARATION");
+            if (node != null && parser.tokenIndex == form.size()) {
+                imports.add(node);
+                importTokens = form;
+                importLineIndex = lineIndex;
+                return;
+            }
+            importsEnded = true;
+            forms.addAll(imports);
+            imports.clear();
+            importTokens = null;
+            importLineIndex = null;
+        }
+        forms.add(parse(form, lineIndex, "COMMAND_OR_DEFINITION"));
+    }
+
+    /**
+     * Parse a form, which fails with an error at the unexpected token if the
+     * rule doesn't match all of it.
+     */
+    ASTNode parse(List<Token> form, LineIndex lineIndex, String ruleName)
+    {
+        return parser(form, lineIndex).parse(ruleName);
+    }
+
+    SchemeParser parser(List<Token> form, LineIndex lineIndex)
+    {
+        SchemeParser parser = new SchemeParser(TokenBuffer.of(form, lineIndex));
+        parser.profile(profile);
+        parser.compact = wrapperChains != null;
+        parser.wrapperChains = wrapperChains;
+        return parser;
+    }
+
+    /**
+     * Read the tokens of the next form. An unbalanced form ends with the code,
+     * and fails to parse.
+     */
+    List<Token> readForm()
+    {
+        if (tokens instanceof LocatedTokens) {
+            lineIndex = ((LocatedTokens) tokens).lineIndexFromNextToken();
+        }
+        List<Token> form = new ArrayList<>();
+        FormSplitter splitter = new FormSplitter();
+        boolean ended;
+        do {
+            Token token = tokens.next();
+            form.add(token);
+            ended = splitter.add(token);
+        } while (!ended && tokens.hasNext());
+        return form;
+    }
+}
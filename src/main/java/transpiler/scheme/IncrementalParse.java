@@ -0,0 +1,377 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import transpiler.ASTNode;
+
+/**
+ * Top-level form of an incremental parse, which goes from the token `start` to
+ * `end`. Its nodes are parsed from its tokens alone, so they're kept as long as
+ * its tokens are the same.
+ */
+class ParsedForm
+{
+    int start;
+    int end;
+    // Whether the form was cut before its parentheses were closed, at a "(" at
+    // the start of a line or at the end of the code.
+    boolean open;
+    // Node of the form as an IMPORT_DECLARATION, or null if it isn't one.
+    ASTNode importNode;
+    // Node of the form as a COMMAND_OR_DEFINITION, or its syntax error, once
+    // it's parsed as one.
+    ASTNode node;
+    RuntimeException error;
+    boolean parsed;
+    // Number of characters which the form moved since its nodes were parsed,
+    // and which their positions are moved by when their locations are asked.
+    int shift;
+
+    public ParsedForm(int start, int end, boolean open)
+    {
+        this.start = start;
+        this.end = end;
+        this.open = open;
+        this.importNode = null;
+        this.node = null;
+        this.error = null;
+        this.parsed = false;
+        this.shift = 0;
+    }
+
+    /**
+     * Return a copy of the form moved by `tokenShift` tokens and `charShift`
+     * characters, with the same nodes, which are left as they are. A form with
+     * an error, or which wasn't parsed yet, has no nodes, and is parsed again,
+     * so its message has the new line and all its nodes have the same shift.
+     */
+    ParsedForm moved(int tokenShift, int charShift)
+    {
+        ParsedForm form = new ParsedForm(start + tokenShift, end + tokenShift, open);
+        if (parsed && error == null) {
+            form.importNode = importNode;
+            form.node = node;
+            form.parsed = true;
+            form.shift = shift + charShift;
+        }
+        return form;
+    }
+}
+
+/**
+ * Parse of a program which recovers from syntax errors and which, after an
+ * edit, only parses the top-level forms around it again.
+ *
+ * The forms are split at the balanced parentheses of the tokens, as in
+ * `ParallelParse`, but a "(" at the start of a line always starts a new form,
+ * as in most editors, so a missing ")" only breaks the form where it is, and an
+ * unexpected ")" is a form of its own. Each form is parsed alone, and the forms
+ * with errors are left out of the PROGRAM node. Without errors, the program is
+ * the same as `SchemeParser.parse`'s.
+ *
+ * After an edit, the forms whose tokens touch it are split and parsed again,
+ * along with the next ones until the tokens and the forms are the same as
+ * before. The nodes of the other forms are reused as they are, since the
+ * programs of the previous codes share them, and keep the positions they were
+ * parsed at. Their locations in the new code are found by `describeLocation`,
+ * which moves them by the shift of their form.
+ */
+class IncrementalParse
+{
+    SchemeParser parser;
+    TokenBuffer tokens;
+    List<ParsedForm> forms;
+    // Program and errors of the last update, or null if there's an edit to
+    // parse.
+    ASTNode program;
+    List<RuntimeException> errors;
+    // Forms of the code before the edit, and the edit, which removed
+    // `removedLength` characters at `offset` and inserted `insertedLength`.
+    IncrementalParse previous;
+    int offset;
+    int removedLength;
+    int insertedLength;
+    // Number of tokens which were parsed again by the last update.
+    int reparsedTokenCount;
+    // Forms of the nodes of the program.
+    Map<ASTNode, ParsedForm> formsByNode;
+
+    public IncrementalParse(SchemeParser parser)
+    {
+        this.parser = parser;
+        this.tokens = parser.tokens;
+        this.forms = null;
+        this.program = null;
+        this.errors = null;
+        this.previous = null;
+        this.offset = 0;
+        this.removedLength = 0;
+        this.insertedLength = 0;
+        this.reparsedTokenCount = 0;
+        this.formsByNode = null;
+    }
+
+    public IncrementalParse(SchemeParser parser,
+                            IncrementalParse previous,
+                            int offset,
+                            int removedLength,
+                            int insertedLength)
+    {
+        this(parser);
+        this.previous = previous;
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.insertedLength = insertedLength;
+    }
+
+    ASTNode program()
+    {
+        if (program == null) update();
+        return program;
+    }
+
+    List<RuntimeException> errors()
+    {
+        if (program == null) update();
+        return errors;
+    }
+
+    void update()
+    {
+        if (previous == null) {
+            forms = split(0, tokens.size());
+            reparsedTokenCount = tokens.size();
+        } else {
+            previous.program();
+            updateForms();
+            previous = null;
+        }
+
+        List<ASTNode> children = new ArrayList<>();
+        errors = new ArrayList<>();
+        formsByNode = new IdentityHashMap<>();
+        // The imports come first, and the last one is parsed as a
+        // COMMAND_OR_DEFINITION if nothing else follows them, as the PROGRAM
+        // rule would backtrack.
+        ParsedForm lastImport = null;
+        boolean importing = true;
+        for (ParsedForm form : forms) {
+            if (importing && form.importNode != null) {
+                children.add(form.importNode);
+                formsByNode.put(form.importNode, form);
+                lastImport = form;
+                continue;
+            }
+            parseForm(form);
+            if (form.node == null) {
+                errors.add(form.error);
+            } else {
+                importing = false;
+                children.add(form.node);
+                formsByNode.put(form.node, form);
+            }
+        }
+        if (importing && lastImport != null) {
+            parseForm(lastImport);
+            children.remove(children.size() - 1);
+            if (lastImport.node == null) {
+                errors.add(lastImport.error);
+            } else {
+                children.add(lastImport.node);
+                formsByNode.put(lastImport.node, lastImport);
+            }
+        }
+        if (forms.isEmpty()) errors.add(parser.unexpectedToken(0));
+
+        // The forms aren't given the program as their parent, since the
+        // programs of the other codes may share them.
+        ASTNode node = new ASTNode();
+        node.children.addAll(children);
+        program = parser.finishRule("PROGRAM", null, 0, node);
+    }
+
+    /**
+     * Return the line and column of a node of the program in the code, which
+     * is found from the position it was parsed at and the shift of its form.
+     */
+    String describeLocation(ASTNode node)
+    {
+        program();
+        if (node.position < 0) return null;
+
+        ParsedForm form = formsByNode.get(node.getRoot());
+        int shift = form == null ? 0 : form.shift;
+        return tokens.lineIndex().describe(node.position + shift);
+    }
+
+    /**
+     * Replace the previous forms which touch the edit, or whose tokens changed,
+     * with the forms of the new tokens, and move the forms after them.
+     */
+    void updateForms()
+    {
+        List<ParsedForm> oldForms = previous.forms;
+        TokenBuffer oldTokens = previous.tokens;
+        int charShift = insertedLength - removedLength;
+        int tokenShift = tokens.size() - oldTokens.size();
+
+        int first = firstFormEndingFrom(oldForms, oldTokens, offset);
+        int last = first;
+        while (last < oldForms.size()
+               && oldTokens.start(oldForms.get(last).start) <= offset + removedLength) {
+            last++;
+        }
+        // The form before may have been cut at a "(" which isn't at the start
+        // of a line anymore.
+        if (first > 0 && oldForms.get(first - 1).open) first--;
+
+        List<ParsedForm> newForms;
+        while (true) {
+            int start = first < oldForms.size() ? oldForms.get(first).start : oldTokens.size();
+            int oldEnd = last > first ? oldForms.get(last - 1).end : start;
+            int end = oldEnd + tokenShift;
+
+            // The tokens before the forms, and after them, must be the same.
+            if (first > 0 && (start > tokens.size() || !sameToken(oldTokens, start - 1, start - 1, 0))) {
+                first--;
+                continue;
+            }
+            boolean sameEnd = oldEnd == oldTokens.size() ?
+                end == tokens.size()
+                : end >= start && end < tokens.size() && sameToken(oldTokens, oldEnd, end, charShift);
+            if (!sameEnd) {
+                last++;
+                continue;
+            }
+
+            newForms = split(start, end);
+            // The last form must end where the next one starts.
+            boolean endsForm = newForms.isEmpty() || !newForms.get(newForms.size() - 1).open;
+            if (!endsForm && end < tokens.size() && !startsForm(end)) {
+                last++;
+                continue;
+            }
+            reparsedTokenCount = end - start;
+            break;
+        }
+
+        forms = new ArrayList<>(oldForms.size() - (last - first) + newForms.size());
+        forms.addAll(oldForms.subList(0, first));
+        forms.addAll(newForms);
+        for (int i = last; i < oldForms.size(); i++) {
+            ParsedForm form = oldForms.get(i).moved(tokenShift, charShift);
+            if (!form.parsed) parseImport(form);
+            forms.add(form);
+        }
+    }
+
+    /**
+     * Return the index of the first form which ends at the offset or after it,
+     * or the number of forms if there's none.
+     */
+    static int firstFormEndingFrom(List<ParsedForm> forms, TokenBuffer tokens, int offset)
+    {
+        int low = 0;
+        int high = forms.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens.end(forms.get(middle).end - 1) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    boolean sameToken(TokenBuffer oldTokens, int oldIndex, int index, int shift)
+    {
+        return tokens.types[index] == oldTokens.types[oldIndex]
+            && tokens.starts[index] == oldTokens.starts[oldIndex] + shift
+            && tokens.lengths[index] == oldTokens.lengths[oldIndex];
+    }
+
+    /**
+     * Return whether the token is a "(" at the start of a line.
+     */
+    boolean startsForm(int index)
+    {
+        if (tokens.type(index) != TokenType.DELIMITER || !tokens.valueEquals(index, "(")) {
+            return false;
+        }
+        int start = tokens.start(index);
+        if (start == 0) return true;
+        char previousChar = tokens.source().charAt(start - 1);
+        return previousChar == '\n' || previousChar == '\r';
+    }
+
+    /**
+     * Split the tokens between the indexes into forms, and parse the forms
+     * which can be imports as IMPORT_DECLARATION.
+     */
+    List<ParsedForm> split(int from, int to)
+    {
+        List<ParsedForm> newForms = new ArrayList<>();
+        int start = from;
+        FormSplitter splitter = new FormSplitter();
+        for (int i = from; i < to; i++) {
+            if (i > start && startsForm(i)) {
+                newForms.add(new ParsedForm(start, i, true));
+                start = i;
+                splitter.reset();
+            }
+
+            if (splitter.add(tokens, i)) {
+                newForms.add(new ParsedForm(start, i + 1, false));
+                start = i + 1;
+            }
+        }
+        if (start < to) newForms.add(new ParsedForm(start, to, true));
+
+        for (ParsedForm form : newForms) {
+            parseImport(form);
+        }
+        return newForms;
+    }
+
+    /**
+     * Parse the form as an IMPORT_DECLARATION, if it can be one.
+     */
+    void parseImport(ParsedForm form)
+    {
+        SchemeParser formParser = formParser(form);
+        ASTNode node = formParser.parseRule("IMPORT_DECLARATION");
+        if (node != null && formParser.tokenIndex == formParser.tokens.size()) {
+            form.importNode = node;
+        }
+    }
+
+    /**
+     * Parse the form as a COMMAND_OR_DEFINITION, unless it already was.
+     */
+    void parseForm(ParsedForm form)
+    {
+        if (form.parsed) return;
+        form.parsed = true;
+        try {
+            form.node = formParser(form).parse("COMMAND_OR_DEFINITION");
+        } catch (RuntimeException e) {
+            form.error = e;
+        }
+    }
+
+    /**
+     * Return a parser of the tokens of the form alone, so it fails at the end
+     * of the form instead of going on with the next one. The tokens keep their
+     * positions in the code.
+     */
+    SchemeParser formParser(ParsedForm form)
+    {
+        TokenBuffer formTokens = new TokenBuffer(tokens.source(), Math.max(form.end - form.start, 1));
+        formTokens.addAll(tokens, form.start, form.end, 0);
+        formTokens.lineIndex = tokens.lineIndex();
+        return parser.withTokens(formTokens);
+    }
+}
@@ -0,0 +1,249 @@
+package transpiler.scheme;
+
+import java.util.Arrays;
+import java.util.List;
+import transpiler.ASTNode;
+
+/**
+ * State of a rule being parsed by `IterativeParser`: the alternative being
+ * tried, its term and the matches of its terms so far. Frames are reused by
+ * the rules parsed at the same depth.
+ */
+class ParseFrame
+{
+    String ruleName;
+    Rule rule;
+    RuleMemo memo;
+    // Index of the token where the rule starts.
+    int start;
+    // Alternatives which can match, or null if all of them are tried.
+    int[] alternatives;
+    int alternativeCount;
+    int alternative;
+    List<Term> terms;
+    int termIndex;
+    // Index of the token where the nonterminal being parsed starts.
+    int termStart;
+    MatchStack matches;
+    // Profile of the rule, or null if it isn't profiled, with the start times
+    // of the rule and of the alternative, and the backtracks of the latter.
+    RuleProfile ruleProfile;
+    long ruleStartTime;
+    long exprStartTime;
+    int backtracks;
+
+    public ParseFrame()
+    {
+        this.matches = new MatchStack(0);
+    }
+
+    void enter(String ruleName,
+               Rule rule,
+               RuleMemo memo,
+               int start,
+               int[] alternatives,
+               RuleProfile ruleProfile,
+               long ruleStartTime)
+    {
+        this.ruleName = ruleName;
+        this.rule = rule;
+        this.memo = memo;
+        this.start = start;
+        this.alternatives = alternatives;
+        this.alternativeCount = alternatives == null ? rule.exprs.size() : alternatives.length;
+        this.alternative = 0;
+        this.ruleProfile = ruleProfile;
+        this.ruleStartTime = ruleStartTime;
+        startExpr();
+    }
+
+    int exprIndex()
+    {
+        return alternatives == null ? alternative : alternatives[alternative];
+    }
+
+    void startExpr()
+    {
+        terms = rule.exprs.get(exprIndex()).terms;
+        termIndex = 0;
+        matches.clear(terms.size());
+        if (ruleProfile != null) {
+            exprStartTime = System.nanoTime();
+            backtracks = 0;
+        }
+    }
+
+    void countExpr(boolean matched, int end)
+    {
+        if (ruleProfile != null) {
+            ruleProfile.countAlternative(exprIndex(), matched, end - start, backtracks,
+                                         System.nanoTime() - exprStartTime);
+        }
+    }
+
+    void exit()
+    {
+        ruleName = null;
+        rule = null;
+        memo = null;
+        alternatives = null;
+        terms = null;
+        matches.clear(0);
+        ruleProfile = null;
+    }
+}
+
+/**
+ * Interprets the definitions of a `SchemeParser` with an explicit stack of
+ * frames instead of recursive calls, so the nesting of the code is only limited
+ * by the heap. The rules are tried in the same order, with the same memo tables
+ * and backtracking as `SchemeParser.parseExpr`, so the results and the
+ * errors are the same.
+ */
+class IterativeParser
+{
+    SchemeParser parser;
+    TokenBuffer tokens;
+    ParseFrame[] frames;
+    int depth;
+    // Result of the last rule which was finished or recalled.
+    ASTNode result;
+
+    public IterativeParser(SchemeParser parser)
+    {
+        this.parser = parser;
+        this.tokens = parser.tokens;
+        this.frames = new ParseFrame[16];
+        this.depth = 0;
+        this.result = null;
+    }
+
+    ASTNode parseRule(String ruleName)
+    {
+        int base = depth;
+        boolean returning = !enterRule(ruleName);
+
+        while (true) {
+            ParseFrame frame;
+            Term term;
+            boolean termMatched;
+
+            if (returning) {
+                if (depth == base) return result;
+
+                // Give the result of the rule to the nonterminal of its caller.
+                frame = frames[depth - 1];
+                term = frame.terms.get(frame.termIndex);
+                termMatched = result != null;
+                if (termMatched) {
+                    frame.matches.push(frame.termIndex, MatchStack.nodeKind(term), frame.termStart, result);
+                }
+                result = null;
+                returning = false;
+            } else {
+                frame = frames[depth - 1];
+                term = frame.terms.get(frame.termIndex);
+                if (term.type == TermType.NONTERMINAL) {
+                    frame.termStart = parser.tokenIndex;
+                    if (enterRule(term.value)) continue;
+
+                    termMatched = result != null;
+                    if (termMatched) {
+                        frame.matches.push(frame.termIndex, MatchStack.nodeKind(term), frame.termStart, result);
+                    }
+                    result = null;
+                } else {
+                    termMatched = parser.matchToken(term, frame.matches, frame.termIndex);
+                }
+            }
+
+            ParserState state = SchemeParser.getCurrenState(term,
+                                                            frame.termIndex + 1 < frame.terms.size(),
+                                                            termMatched,
+                                                            frame.matches.counts[frame.termIndex]);
+            switch (state) {
+            case REPEAT:
+                break;
+            case NEXT:
+                frame.termIndex++;
+                break;
+            case STOP:
+                frame.countExpr(true, parser.tokenIndex);
+                exitRule(frame, frame.matches.build(tokens));
+                returning = true;
+                break;
+            case BACKTRACK:
+                frame.backtracks++;
+                int termIndex = parser.backtrack(frame.ruleName, frame.terms, frame.termIndex, frame.matches);
+                if (termIndex >= 0) {
+                    frame.termIndex = termIndex + 1;
+                    break;
+                }
+
+                parser.tokenIndex = frame.start;
+                frame.countExpr(false, frame.start);
+                frame.alternative++;
+                if (frame.alternative < frame.alternativeCount) {
+                    frame.startExpr();
+                } else {
+                    exitRule(frame, null);
+                    returning = true;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Push a frame for the rule at the current token and return true, or
+     * return false if its result is already known, and leave it in `result`.
+     */
+    boolean enterRule(String ruleName)
+    {
+        Rule rule = parser.definitions.get(ruleName);
+        if (rule == null) throw parser.undefinedRule(ruleName);
+
+        int start = parser.tokenIndex;
+        parser.step(ruleName, start);
+        RuleProfile ruleProfile = parser.profile == null ? null : parser.profile.rule(ruleName, rule);
+        long ruleStartTime = ruleProfile == null ? 0 : System.nanoTime();
+        RuleMemo memo = parser.memoFor(ruleName, start);
+        if (memo != null && memo.known(start)) {
+            result = parser.recall(memo, start);
+            countRule(ruleProfile, start, ruleStartTime);
+            return false;
+        }
+
+        int[] alternatives = parser.alternatives(ruleName, rule.exprs.size(), start);
+        if ((alternatives == null ? rule.exprs.size() : alternatives.length) == 0) {
+            result = parser.finishRule(ruleName, memo, start, null);
+            countRule(ruleProfile, start, ruleStartTime);
+            return false;
+        }
+
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        if (frames[depth] == null) {
+            frames[depth] = new ParseFrame();
+        }
+        frames[depth++].enter(ruleName, rule, memo, start, alternatives, ruleProfile, ruleStartTime);
+        return true;
+    }
+
+    void exitRule(ParseFrame frame, ASTNode node)
+    {
+        result = parser.finishRule(frame.ruleName, frame.memo, frame.start, node);
+        countRule(frame.ruleProfile, frame.start, frame.ruleStartTime);
+        frame.exit();
+        depth--;
+    }
+
+    void countRule(RuleProfile ruleProfile, int start, long ruleStartTime)
+    {
+        if (ruleProfile != null) {
+            ruleProfile.countRule(result != null, parser.tokenIndex - start,
+                                  System.nanoTime() - ruleStartTime);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grammar transformation which left-factors the alternatives of the rules: the
+ * consecutive alternatives which start with the same terms are replaced by one
+ * which matches those terms once, followed by a subrule with the rest of each
+ * of them as its alternatives. The subrule of RULE is named RULE'1, RULE'2 and
+ * so on, and it's inline, so its node is merged into the node of the rule and
+ * the AST is the same as without the transformation.
+ *
+ * A term without modifiers matches in only one way, so the alternatives try the
+ * same matches in the same order. A term with a modifier is only factored when
+ * the rest of each alternative but the last can't start where the term could
+ * match again, so the rest only matches after the greedy matches of the term,
+ * before any backtracking, and the order of the matches makes no difference.
+ * The alternatives with patterns are left as they are, since the tag of the
+ * node can't be merged.
+ */
+class LeftFactoring
+{
+    Map<String, Rule> definitions;
+    Map<String, Rule> factored;
+    PredictiveTables lookaheads;
+    Map<String, Lookahead> ruleLookaheads;
+
+    public LeftFactoring(Map<String, Rule> definitions)
+    {
+        this.definitions = definitions;
+        this.factored = new HashMap<>();
+        this.lookaheads = null;
+        this.ruleLookaheads = null;
+    }
+
+    static Map<String, Rule> factor(Map<String, Rule> definitions)
+    {
+        return new LeftFactoring(definitions).factor();
+    }
+
+    Map<String, Rule> factor()
+    {
+        for (Map.Entry<String, Rule> entry : definitions.entrySet()) {
+            factored.put(entry.getKey(), factorRule(entry.getKey(), entry.getValue().exprs));
+        }
+        return factored;
+    }
+
+    Rule factorRule(String ruleName, List<Expr> exprs)
+    {
+        List<Expr> factoredExprs = new ArrayList<>();
+        int subruleCount = 0;
+        int i = 0;
+        while (i < exprs.size()) {
+            int end = i + 1;
+            while (end < exprs.size() && sharePrefix(exprs.get(i), exprs.get(end), 0)) {
+                end++;
+            }
+            // The last alternatives of the group are left out until the prefix
+            // can be factored.
+            int prefixLength = 0;
+            while (end - i > 1 && (prefixLength = prefixLength(exprs.subList(i, end))) == 0) {
+                end--;
+            }
+            if (prefixLength == 0) {
+                factoredExprs.add(exprs.get(i++));
+                continue;
+            }
+
+            String subruleName = ruleName + "'" + ++subruleCount;
+            List<Expr> suffixes = new ArrayList<>();
+            for (Expr expr : exprs.subList(i, end)) {
+                List<Term> suffix = expr.terms.subList(prefixLength, expr.terms.size());
+                suffixes.add(suffix.isEmpty() ?
+                             new Expr(new Term("", TermType.TERMINAL))
+                             : new Expr(new ArrayList<>(suffix)));
+            }
+            Rule factoredSubrule = factorRule(subruleName, suffixes);
+            factoredSubrule.inline = true;
+            factored.put(subruleName, factoredSubrule);
+
+            Term subrule = new Term(subruleName, TermType.NONTERMINAL);
+            subrule.inline = true;
+            List<Term> terms = new ArrayList<>(exprs.get(i).terms.subList(0, prefixLength));
+            terms.add(subrule);
+            factoredExprs.add(new Expr(terms));
+            i = end;
+        }
+        return new Rule(factoredExprs);
+    }
+
+    /**
+     * Return the number of terms which can be factored out of the start of the
+     * alternatives, or 0 if they can't be factored.
+     */
+    int prefixLength(List<Expr> group)
+    {
+        for (Expr expr : group) {
+            for (Term term : expr.terms) {
+                if (term.type == TermType.PATTERN) return 0;
+            }
+        }
+
+        int length = 0;
+        while (allSharePrefix(group, length)) {
+            Term term = group.get(0).terms.get(length);
+            if (term.modifier != null && !restsFollowRepetition(group, length)) break;
+            length++;
+        }
+        return length;
+    }
+
+    static boolean allSharePrefix(List<Expr> group, int termIndex)
+    {
+        for (Expr expr : group) {
+            if (!sharePrefix(group.get(0), expr, termIndex)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return whether both expressions have the same term at the index, which
+     * isn't an empty terminal.
+     */
+    static boolean sharePrefix(Expr expr, Expr other, int termIndex)
+    {
+        if (termIndex >= expr.terms.size() || termIndex >= other.terms.size()) return false;
+        Term term = expr.terms.get(termIndex);
+        Term otherTerm = other.terms.get(termIndex);
+        return term.type == otherTerm.type
+            && term.value.equals(otherTerm.value)
+            && term.modifier == otherTerm.modifier
+            && !term.inline
+            && !otherTerm.inline
+            && !(term.type == TermType.TERMINAL && term.value.isEmpty());
+    }
+
+    /**
+     * Return whether the rest of each alternative but the last, after the term
+     * with a modifier at the index, must match at least one token which can't
+     * be the first of a match of the term.
+     */
+    boolean restsFollowRepetition(List<Expr> group, int termIndex)
+    {
+        if (lookaheads == null) {
+            lookaheads = new PredictiveTables();
+            lookaheads.classifyTerminals(definitions);
+            ruleLookaheads = lookaheads.computeRuleLookaheads(definitions);
+        }
+
+        Term term = group.get(0).terms.get(termIndex);
+        BitSet termFirsts = lookaheads
+            .termLookahead(new Term(term.value, term.type), ruleLookaheads)
+            .firsts(lookaheads.classCount);
+        for (Expr expr : group.subList(0, group.size() - 1)) {
+            List<Term> rest = expr.terms.subList(termIndex + 1, expr.terms.size());
+            Lookahead restLookahead = lookaheads.exprLookahead(new Expr(rest), ruleLookaheads);
+            if (restLookahead.nullable
+                || restLookahead.firsts(lookaheads.classCount).intersects(termFirsts)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
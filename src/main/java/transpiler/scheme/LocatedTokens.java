@@ -0,0 +1,18 @@
+package transpiler.scheme;
+
+import java.util.Iterator;
+import transpiler.LineIndex;
+
+/**
+ * Tokens with their positions in a code, whose lines are in the line index.
+ */
+interface LocatedTokens extends Iterator<Token>
+{
+    LineIndex lineIndex();
+
+    /**
+     * Return the line index from the line of the next token on, which is
+     * `lineIndex` from then on, so the lines before it needn't be kept.
+     */
+    LineIndex lineIndexFromNextToken();
+}
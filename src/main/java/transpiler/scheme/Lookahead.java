@@ -0,0 +1,94 @@
+package transpiler.scheme;
+
+import java.util.BitSet;
+
+/**
+ * First one or two tokens of the matches of a rule, an expression or a term.
+ * Tokens are represented by their class in `PredictiveTables`.
+ */
+class Lookahead
+{
+    // Whether it can match no tokens.
+    boolean nullable;
+    // First tokens of the matches which are a single token long.
+    BitSet singles;
+    // First two tokens of the longer matches, as `first * classCount + second`.
+    BitSet pairs;
+
+    public Lookahead()
+    {
+        this.nullable = false;
+        this.singles = new BitSet();
+        this.pairs = new BitSet();
+    }
+
+    static Lookahead empty()
+    {
+        Lookahead lookahead = new Lookahead();
+        lookahead.nullable = true;
+        return lookahead;
+    }
+
+    static Lookahead any(int classCount)
+    {
+        Lookahead lookahead = empty();
+        lookahead.singles.set(0, classCount);
+        lookahead.pairs.set(0, classCount * classCount);
+        return lookahead;
+    }
+
+    BitSet firsts(int classCount)
+    {
+        BitSet firsts = (BitSet) singles.clone();
+        for (int pair = pairs.nextSetBit(0); pair >= 0; pair = pairs.nextSetBit(pair + 1)) {
+            firsts.set(pair / classCount);
+        }
+        return firsts;
+    }
+
+    /**
+     * Return the lookahead of this followed by the other.
+     */
+    Lookahead concat(Lookahead other, int classCount)
+    {
+        Lookahead result = new Lookahead();
+        result.nullable = nullable && other.nullable;
+        result.pairs.or(pairs);
+        BitSet otherFirsts = other.firsts(classCount);
+        for (int first = singles.nextSetBit(0); first >= 0; first = singles.nextSetBit(first + 1)) {
+            for (int second = otherFirsts.nextSetBit(0);
+                 second >= 0;
+                 second = otherFirsts.nextSetBit(second + 1)) {
+                result.pairs.set(first * classCount + second);
+            }
+        }
+        if (other.nullable) result.singles.or(singles);
+        if (nullable) {
+            result.singles.or(other.singles);
+            result.pairs.or(other.pairs);
+        }
+        return result;
+    }
+
+    void union(Lookahead other)
+    {
+        nullable |= other.nullable;
+        singles.or(other.singles);
+        pairs.or(other.pairs);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof Lookahead other
+            && nullable == other.nullable
+            && singles.equals(other.singles)
+            && pairs.equals(other.pairs);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return singles.hashCode() * 31 + pairs.hashCode();
+    }
+}
@@ -0,0 +1,126 @@
+package transpiler.scheme;
+
+import java.util.Arrays;
+import transpiler.ASTNode;
+
+/**
+ * Matches of the terms of an expression, in the order they were found. Since
+ * backtracking always removes the matches of the last terms first, they're kept
+ * as a stack.
+ */
+class MatchStack
+{
+    static int EMPTY = 0;
+    static int TERMINAL = 1;
+    static int PATTERN = 2;
+    static int NODE = 3;
+    // Node of a rule which is merged into the node of the expression.
+    static int INLINE = 4;
+
+    int[] terms;
+    int[] kinds;
+    int[] indexes;
+    ASTNode[] nodes;
+    int size;
+    // Number of matches of each term.
+    int[] counts;
+
+    public MatchStack(int termCount)
+    {
+        this.terms = new int[8];
+        this.kinds = new int[8];
+        this.indexes = new int[8];
+        this.nodes = new ASTNode[8];
+        this.size = 0;
+        this.counts = new int[termCount];
+    }
+
+    void push(int term, int kind, int index, ASTNode node)
+    {
+        if (size == terms.length) {
+            terms = Arrays.copyOf(terms, size * 2);
+            kinds = Arrays.copyOf(kinds, size * 2);
+            indexes = Arrays.copyOf(indexes, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        terms[size] = term;
+        kinds[size] = kind;
+        indexes[size] = index;
+        nodes[size] = node;
+        size++;
+        counts[term]++;
+    }
+
+    /**
+     * Remove the last match and return the index of the token where it started.
+     */
+    int pop()
+    {
+        size--;
+        counts[terms[size]]--;
+        nodes[size] = null;
+        return indexes[size];
+    }
+
+    /**
+     * Remove all the matches, so the stack can be used for an expression with
+     * the given number of terms.
+     */
+    void clear(int termCount)
+    {
+        Arrays.fill(nodes, 0, size, null);
+        size = 0;
+        if (counts.length < termCount) {
+            counts = new int[termCount];
+        } else {
+            Arrays.fill(counts, 0, termCount, 0);
+        }
+    }
+
+    ASTNode build(TokenBuffer tokens)
+    {
+        ASTNode node = new ASTNode();
+        for (int i = 0; i < size; i++) {
+            int kind = kinds[i];
+            if (kind == TERMINAL) {
+                setTerminalValue(node, tokens, indexes[i]);
+            } else if (kind == PATTERN) {
+                setPatternValue(node, tokens, indexes[i]);
+            } else if (kind == NODE) {
+                node.addChildren(nodes[i]);
+            } else if (kind == INLINE) {
+                inlineNode(node, nodes[i]);
+            }
+        }
+        return node;
+    }
+
+    static int nodeKind(Term term)
+    {
+        return term.inline ? INLINE : NODE;
+    }
+
+    /**
+     * Merge the node of an inline rule into the node, as if the matches of the
+     * rule were those of the node. Inline rules have no patterns, so only a
+     * terminal can have set the value, and never the tag.
+     */
+    static void inlineNode(ASTNode node, ASTNode child)
+    {
+        if (child.value != null) node.value = child.value;
+        node.addChildren(child.children);
+    }
+
+    static void setTerminalValue(ASTNode node, TokenBuffer tokens, int index)
+    {
+        if (tokens.type(index) == TokenType.IDENTIFIER) {
+            node.value = tokens.value(index);
+        }
+    }
+
+    static void setPatternValue(ASTNode node, TokenBuffer tokens, int index)
+    {
+        node.value = tokens.value(index);
+        node.tokenTag = tokens.tag(index);
+    }
+}
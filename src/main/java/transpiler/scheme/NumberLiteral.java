@@ -0,0 +1,149 @@
+package transpiler.scheme;
+
+/**
+ * Tags of number tokens, which are classified when they're scanned. A tag packs
+ * the type of the number, its radix, its exactness, the length of its prefix and
+ * the offset of its separator: the "/" of a rational, the "@" of a polar number
+ * or the sign of the imaginary part of a rectangular number.
+ *
+ * The tag of any other token is 0.
+ */
+public class NumberLiteral
+{
+    static NumberType[] NUMBER_TYPES = NumberType.values();
+    static Exactness[] EXACTNESSES = Exactness.values();
+    static int[] RADIXES = {2, 8, 10, 16};
+    static int MAX_SEPARATOR = (1 << 22) - 1;
+
+    public static int tag(NumberType type,
+                          int radix,
+                          Exactness exactness,
+                          int prefixLength,
+                          int separator)
+    {
+        if (separator > MAX_SEPARATOR) {
+            throw new RuntimeException("Number literal is too long.");
+        }
+        int radixCode = switch (radix) {
+        case 2 -> 0;
+        case 8 -> 1;
+        case 16 -> 3;
+        default -> 2;
+        };
+        return (type.ordinal() + 1)
+            | radixCode << 3
+            | exactness.ordinal() << 5
+            | prefixLength << 7
+            | separator << 10;
+    }
+
+    public static NumberType type(int tag)
+    {
+        return NUMBER_TYPES[(tag & 0x7) - 1];
+    }
+
+    public static int radix(int tag)
+    {
+        return RADIXES[tag >>> 3 & 0x3];
+    }
+
+    public static Exactness exactness(int tag)
+    {
+        return EXACTNESSES[tag >>> 5 & 0x3];
+    }
+
+    public static int prefixLength(int tag)
+    {
+        return tag >>> 7 & 0x7;
+    }
+
+    public static int separator(int tag)
+    {
+        return tag >>> 10;
+    }
+
+    public static int classify(CharSequence text)
+    {
+        return classify(text, 0, text.length());
+    }
+
+    /**
+     * Return the tag of the number token between start and end, which must have
+     * been matched by `SchemeScanner.NUMBER`.
+     */
+    public static int classify(CharSequence text, int start, int end)
+    {
+        int radix = 10;
+        Exactness exactness = Exactness.UNSPECIFIED;
+        int pos = start;
+        while (pos + 1 < end && text.charAt(pos) == '#') {
+            switch (Character.toLowerCase(text.charAt(pos + 1))) {
+            case 'b' -> radix = 2;
+            case 'o' -> radix = 8;
+            case 'x' -> radix = 16;
+            case 'e' -> exactness = Exactness.EXACT;
+            case 'i' -> exactness = Exactness.INEXACT;
+            default -> { }
+            }
+            pos += 2;
+        }
+        int prefixLength = pos - start;
+
+        for (int i = pos; i < end; i++) {
+            if (text.charAt(i) == '@') {
+                return tag(NumberType.POLAR, radix, exactness, prefixLength, i - start);
+            }
+        }
+
+        if (text.charAt(end - 1) == 'i') {
+            // The imaginary part starts at the last sign which isn't part of an
+            // exponent, or at the start if it's alone.
+            int imaginaryStart = pos;
+            for (int i = end - 2; i > pos; i--) {
+                char c = text.charAt(i);
+                if ((c == '+' || c == '-') && !(radix == 10 && text.charAt(i - 1) == 'e')) {
+                    imaginaryStart = i;
+                    break;
+                }
+            }
+            return tag(NumberType.RECTANGULAR, radix, exactness, prefixLength, imaginaryStart - start);
+        }
+
+        int digitsStart = pos;
+        if (text.charAt(pos) == '+' || text.charAt(pos) == '-') {
+            digitsStart++;
+            if (end - digitsStart == 5
+                && (regionMatches(text, digitsStart, "inf.0")
+                    || regionMatches(text, digitsStart, "nan.0"))) {
+                return tag(NumberType.INFNAN, radix, exactness, prefixLength, 0);
+            }
+        }
+
+        boolean fitsInLong = true;
+        long value = 0;
+        for (int i = digitsStart; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '/') {
+                return tag(NumberType.RATIONAL, radix, exactness, prefixLength, i - start);
+            }
+            if (radix == 10 && (c == '.' || c == 'e')) {
+                return tag(NumberType.FLONUM, radix, exactness, prefixLength, 0);
+            }
+            int digit = Character.digit(c, radix);
+            if (fitsInLong && value > (Long.MAX_VALUE - digit) / radix) {
+                fitsInLong = false;
+            }
+            value = value * radix + digit;
+        }
+        NumberType type = fitsInLong ? NumberType.FIXNUM : NumberType.BIGNUM;
+        return tag(type, radix, exactness, prefixLength, 0);
+    }
+
+    static boolean regionMatches(CharSequence text, int start, String expected)
+    {
+        for (int i = 0; i < expected.length(); i++) {
+            if (text.charAt(start + i) != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+package transpiler.scheme;
+
+public enum NumberType {
+    // An integer which fits in a long.
+    FIXNUM,
+    BIGNUM,
+    RATIONAL,
+    // A decimal, such as "1.5" or "1e3".
+    FLONUM,
+    INFNAN,
+    RECTANGULAR,
+    POLAR,
+};
@@ -0,0 +1,149 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import transpiler.ASTNode;
+
+/**
+ * Parse of a program whose top-level forms are parsed in parallel, and then put
+ * together under one PROGRAM node.
+ *
+ * The forms are split at the balanced parentheses of the tokens. Since a rule
+ * always gives the same result at the same position, each form is parsed as a
+ * COMMAND_OR_DEFINITION from its start, as the sequential parse would. If a
+ * form isn't matched exactly, the whole program is parsed sequentially, so the
+ * result and the errors are always the same as `SchemeParser.parse`'s.
+ */
+class ParallelParse extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    // Forms are parsed by the same task until they have at least this many
+    // tokens, so small forms don't take a task each.
+    static int MIN_TASK_TOKENS = 1 << 10;
+
+    SchemeParser parser;
+    // Form i goes from boundaries[i] to boundaries[i + 1].
+    int[] boundaries;
+    // Nodes of the forms, or null where a form wasn't matched.
+    ASTNode[] forms;
+    int firstForm;
+    int lastForm;
+
+    public ParallelParse(SchemeParser parser,
+                         int[] boundaries,
+                         ASTNode[] forms,
+                         int firstForm,
+                         int lastForm)
+    {
+        this.parser = parser;
+        this.boundaries = boundaries;
+        this.forms = forms;
+        this.firstForm = firstForm;
+        this.lastForm = lastForm;
+    }
+
+    static ASTNode parse(SchemeParser parser, ForkJoinPool pool)
+    {
+        TokenBuffer tokens = parser.tokens;
+        int[] boundaries = findFormBoundaries(tokens);
+        int formCount = boundaries == null ? 0 : boundaries.length - 1;
+
+        // The imports are few, so they're parsed first in this thread.
+        List<ASTNode> imports = new ArrayList<>();
+        int form = 0;
+        while (form < formCount) {
+            parser.tokenIndex = boundaries[form];
+            ASTNode node = parser.parseRule("IMPORT_DECLARATION");
+            if (node == null || parser.tokenIndex != boundaries[form + 1]) break;
+            imports.add(node);
+            form++;
+        }
+        // Without any other form, the sequential parse backtracks into the
+        // imports.
+        if (form == formCount) return parseSequentially(parser);
+
+        // Create the line index before the nodes are shared between threads,
+        // and count the steps and backtracks of the threads together.
+        tokens.lineIndex();
+        parser.shareBudget();
+        ASTNode[] forms = new ASTNode[formCount];
+        pool.invoke(new ParallelParse(parser, boundaries, forms, form, formCount));
+
+        ASTNode program = new ASTNode();
+        program.addChildren(imports);
+        for (int i = form; i < formCount; i++) {
+            if (forms[i] == null) return parseSequentially(parser);
+            program.addChildren(forms[i]);
+        }
+        parser.tokenIndex = tokens.size();
+        return parser.finishRule("PROGRAM", parser.memoFor("PROGRAM", 0), 0, program);
+    }
+
+    static ASTNode parseSequentially(SchemeParser parser)
+    {
+        parser.tokenIndex = 0;
+        parser.furthestFailureIndex = 0;
+        return parser.parse();
+    }
+
+    @Override
+    protected void compute()
+    {
+        int tokenCount = boundaries[lastForm] - boundaries[firstForm];
+        if (lastForm - firstForm <= 1 || tokenCount < MIN_TASK_TOKENS) {
+            parseForms();
+            return;
+        }
+
+        int middleForm = (firstForm + lastForm) >>> 1;
+        invokeAll(new ParallelParse(parser, boundaries, forms, firstForm, middleForm),
+                  new ParallelParse(parser, boundaries, forms, middleForm, lastForm));
+    }
+
+    void parseForms()
+    {
+        SchemeParser formParser = parser.fork(boundaries[firstForm], boundaries[lastForm]);
+        for (int i = firstForm; i < lastForm; i++) {
+            formParser.tokenIndex = boundaries[i];
+            ASTNode node;
+            try {
+                node = formParser.parseRule("COMMAND_OR_DEFINITION");
+            } catch (StackOverflowError e) {
+                // A form nested too deeply for the stack of the thread is
+                // parsed with an explicit one, as `SchemeParser.parse` does.
+                if (formParser.iterativeParser != null) throw e;
+                node = formParser.reparseIteratively("COMMAND_OR_DEFINITION", boundaries[i]);
+            }
+            // The rest of the forms don't matter once one isn't matched.
+            if (node == null || formParser.tokenIndex != boundaries[i + 1]) return;
+            forms[i] = node;
+        }
+    }
+
+    /**
+     * Return the start of each top-level form and the end of the last one, or
+     * null if the parentheses aren't balanced.
+     */
+    static int[] findFormBoundaries(TokenBuffer tokens)
+    {
+        int[] boundaries = new int[16];
+        int count = 1;
+        FormSplitter splitter = new FormSplitter();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (!splitter.add(tokens, i)) continue;
+            if (splitter.unbalanced) return null;
+
+            if (count == boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, count * 2);
+            }
+            boundaries[count++] = i + 1;
+        }
+        if (splitter.inForm()) return null;
+
+        return Arrays.copyOf(boundaries, count);
+    }
+}
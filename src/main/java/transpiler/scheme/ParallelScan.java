@@ -0,0 +1,202 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class ScannedChunk
+{
+    TokenBuffer tokens;
+    RuntimeException error;
+    // Whether a match in the chunk could have been changed by the code after it.
+    boolean hitEnd;
+}
+
+/**
+ * Scan of the code split in chunks between top-level forms, which are tokenized
+ * in parallel and then concatenated in order.
+ *
+ * The boundaries are found by a pre-scan which only follows parentheses, strings,
+ * |identifiers|, characters and comments. A chunk whose scan depended on the code
+ * after it is scanned again together with the following chunks, so the tokens
+ * are always the same as a sequential scan's.
+ */
+class ParallelScan extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    static int MIN_CHUNK_SIZE = 1 << 16;
+    // There are more chunks than threads, so threads which finish early can
+    // take the remaining ones.
+    static int CHUNKS_PER_THREAD = 4;
+
+    CharSequence code;
+    ScanMode mode;
+    // Chunk i goes from boundaries[i] to boundaries[i + 1].
+    int[] boundaries;
+    ScannedChunk[] chunks;
+    int firstChunk;
+    int lastChunk;
+
+    public ParallelScan(CharSequence code,
+                        ScanMode mode,
+                        int[] boundaries,
+                        ScannedChunk[] chunks,
+                        int firstChunk,
+                        int lastChunk)
+    {
+        this.code = code;
+        this.mode = mode;
+        this.boundaries = boundaries;
+        this.chunks = chunks;
+        this.firstChunk = firstChunk;
+        this.lastChunk = lastChunk;
+    }
+
+    static TokenBuffer scan(CharSequence code, ScanMode mode, ForkJoinPool pool)
+    {
+        int chunkCount = pool.getParallelism() * CHUNKS_PER_THREAD;
+        return scan(code, mode, pool, Math.max(code.length() / chunkCount, MIN_CHUNK_SIZE));
+    }
+
+    static TokenBuffer scan(CharSequence code, ScanMode mode, ForkJoinPool pool, int chunkSize)
+    {
+        int[] boundaries = findFormBoundaries(code, chunkSize);
+        ScannedChunk[] chunks = new ScannedChunk[boundaries.length - 1];
+        pool.invoke(new ParallelScan(code, mode, boundaries, chunks, 0, chunks.length));
+
+        int capacity = 0;
+        for (ScannedChunk chunk : chunks) {
+            if (chunk.tokens != null) capacity += chunk.tokens.size();
+        }
+        TokenBuffer tokens = new TokenBuffer(code, Math.max(capacity, 1));
+
+        int i = 0;
+        while (i < chunks.length) {
+            ScannedChunk chunk = chunks[i];
+            int end = i + 1;
+            // The chunk count is doubled at each try, so that a wrong boundary
+            // never makes the scan quadratic.
+            while (chunk.hitEnd) {
+                end = Math.min(i + 2 * (end - i), chunks.length);
+                chunk = scanChunk(code, mode, boundaries[i], boundaries[end]);
+            }
+
+            if (chunk.error != null) throw chunk.error;
+            tokens.addAll(chunk.tokens);
+            i = end;
+        }
+        return tokens;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if (lastChunk - firstChunk <= 1) {
+            if (firstChunk < lastChunk) {
+                chunks[firstChunk] = scanChunk(code,
+                                               mode,
+                                               boundaries[firstChunk],
+                                               boundaries[firstChunk + 1]);
+            }
+            return;
+        }
+
+        int middleChunk = (firstChunk + lastChunk) >>> 1;
+        invokeAll(new ParallelScan(code, mode, boundaries, chunks, firstChunk, middleChunk),
+                  new ParallelScan(code, mode, boundaries, chunks, middleChunk, lastChunk));
+    }
+
+    static ScannedChunk scanChunk(CharSequence code, ScanMode mode, int start, int end)
+    {
+        SchemeScanner scanner = new SchemeScanner(code, mode);
+        scanner.reset(code, end);
+
+        ScannedChunk chunk = new ScannedChunk();
+        try {
+            chunk.tokens = scanner.scan(start);
+        } catch (RuntimeException e) {
+            chunk.error = e;
+        }
+        chunk.hitEnd = scanner.scanHitEnd && end < code.length();
+        return chunk;
+    }
+
+    /**
+     * Return the start of the code, its end, and the positions right after the
+     * first top-level forms which end chunkSize characters or more after the
+     * previous boundary.
+     */
+    static int[] findFormBoundaries(CharSequence code, int chunkSize)
+    {
+        List<Integer> boundaries = new ArrayList<>();
+        boundaries.add(0);
+
+        int length = code.length();
+        int depth = 0;
+        int nextBoundary = chunkSize;
+        int pos = 0;
+        while (pos < length) {
+            char c = code.charAt(pos++);
+            switch (c) {
+            case '(' -> depth++;
+            case ')' -> {
+                depth = Math.max(depth - 1, 0);
+                if (depth == 0 && pos >= nextBoundary && pos < length) {
+                    boundaries.add(pos);
+                    nextBoundary = pos + chunkSize;
+                }
+            }
+            case '"', '|' -> pos = skipQuoted(code, pos, c);
+            case ';' -> {
+                while (pos < length && code.charAt(pos) != '\n' && code.charAt(pos) != '\r') {
+                    pos++;
+                }
+            }
+            case '#' -> {
+                if (pos < length && code.charAt(pos) == '\\') {
+                    // The character after "#\" could be a parenthesis or a quote.
+                    pos += 2;
+                } else if (pos < length && code.charAt(pos) == '|') {
+                    pos = skipNestedComment(code, pos + 1);
+                }
+            }
+            default -> { }
+            }
+        }
+
+        boundaries.add(length);
+        return boundaries.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static int skipQuoted(CharSequence code, int pos, char quote)
+    {
+        while (pos < code.length()) {
+            char c = code.charAt(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == quote) {
+                return pos;
+            }
+        }
+        return code.length();
+    }
+
+    static int skipNestedComment(CharSequence code, int pos)
+    {
+        int depth = 1;
+        while (depth > 0 && pos + 1 < code.length()) {
+            if (code.charAt(pos) == '|' && code.charAt(pos + 1) == '#') {
+                depth--;
+                pos += 2;
+            } else if (code.charAt(pos) == '#' && code.charAt(pos + 1) == '|') {
+                depth++;
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        return depth == 0 ? pos : code.length();
+    }
+}
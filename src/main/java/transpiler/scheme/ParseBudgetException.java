@@ -0,0 +1,31 @@
+package transpiler.scheme;
+
+/**
+ * Error of a parse which ran out of one of the limits given to its parser: the
+ * number of rules parsed ("steps"), of backtracks ("backtracks"), or the time
+ * ("time"). It names the rule which was being parsed and the token where it
+ * started.
+ */
+public class ParseBudgetException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public String limit;
+    public String ruleName;
+    // Index of the token, and its offset in the source.
+    public int tokenIndex;
+    public int position;
+
+    public ParseBudgetException(String message,
+                                String limit,
+                                String ruleName,
+                                int tokenIndex,
+                                int position)
+    {
+        super(message);
+        this.limit = limit;
+        this.ruleName = ruleName;
+        this.tokenIndex = tokenIndex;
+        this.position = position;
+    }
+}
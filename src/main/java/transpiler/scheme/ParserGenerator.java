@@ -0,0 +1,284 @@
+package transpiler.scheme;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes a recursive-descent parser for a grammar, where each rule and each of
+ * its expressions is a method, so they don't need to be interpreted. The build
+ * runs it on the default definitions after they're compiled, and compiles the
+ * result as `CompiledSchemeParser`.
+ *
+ * Expressions without modifiers are matched term by term, and fail at the first
+ * term which doesn't match. The other expressions keep their matches in a
+ * `MatchStack`, and backtrack as `SchemeParser.parseExpr` does.
+ */
+public class ParserGenerator
+{
+    Map<String, Rule> definitions;
+    String className;
+    StringBuilder code;
+    List<String> patterns;
+    // Minimum match counts of the terms of the backtracking expressions, such
+    // as "{0, 1}", which the expressions with the same ones share.
+    List<String> minimums;
+
+    public ParserGenerator(Map<String, Rule> definitions, String className)
+    {
+        this.definitions = new TreeMap<>(definitions);
+        this.className = className;
+        this.code = new StringBuilder();
+        this.patterns = new ArrayList<>();
+        this.minimums = new ArrayList<>();
+    }
+
+    /**
+     * Write the parser of the default definitions into the source directory
+     * given as the argument.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1) {
+            throw new RuntimeException("Expected the output directory as the only argument.");
+        }
+        String className = CompiledParser.COMPILED_SCHEME_PARSER;
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        Path file = Path.of(args[0], className.replace('.', '/') + ".java");
+
+        String source = new ParserGenerator(SchemeParser.DEFAULT_DEFINITIONS, simpleName).generate();
+        Files.createDirectories(file.getParent());
+        if (!Files.exists(file) || !Files.readString(file).equals(source)) {
+            Files.writeString(file, source);
+        }
+    }
+
+    public String generate()
+    {
+        code.setLength(0);
+        patterns.clear();
+        minimums.clear();
+
+        StringBuilder methods = new StringBuilder();
+        StringBuilder body = code;
+        code = methods;
+        emitParseRule();
+        for (Map.Entry<String, Rule> entry : definitions.entrySet()) {
+            emitRule(entry.getKey(), entry.getValue());
+        }
+        code = body;
+
+        line(0, "// Generated by ParserGenerator from SchemeParser.DEFAULT_DEFINITIONS.");
+        line(0, "// Don't edit it, since it's written again by every build.");
+        line(0, "package transpiler.scheme;");
+        line(0, "");
+        line(0, "import java.util.regex.Pattern;");
+        line(0, "import transpiler.ASTNode;");
+        line(0, "");
+        line(0, "class " + className + " extends CompiledParser");
+        line(0, "{");
+        for (int i = 0; i < patterns.size(); i++) {
+            line(1, "static Pattern PATTERN_" + i + " = Pattern.compile(" + literal(patterns.get(i)) + ");");
+        }
+        for (int i = 0; i < minimums.size(); i++) {
+            line(1, "static int[] MINIMUMS_" + i + " = " + minimums.get(i) + ";");
+        }
+        if (!patterns.isEmpty() || !minimums.isEmpty()) line(0, "");
+        line(1, "public " + className + "(SchemeParser parser)");
+        line(1, "{");
+        line(2, "super(parser);");
+        line(1, "}");
+        code.append(methods);
+        line(0, "}");
+        return code.toString();
+    }
+
+    void emitParseRule()
+    {
+        line(0, "");
+        line(1, "@Override");
+        line(1, "ASTNode parseRule(String ruleName)");
+        line(1, "{");
+        line(2, "return switch (ruleName) {");
+        for (String ruleName : definitions.keySet()) {
+            line(2, "case " + literal(ruleName) + " -> " + ruleMethod(ruleName) + "();");
+        }
+        line(2, "default -> throw parser.undefinedRule(ruleName);");
+        line(2, "};");
+        line(1, "}");
+    }
+
+    void emitRule(String ruleName, Rule rule)
+    {
+        String method = ruleMethod(ruleName);
+        int exprCount = rule.exprs.size();
+
+        line(0, "");
+        line(1, "ASTNode " + method + "()");
+        line(1, "{");
+        line(2, "int start = parser.tokenIndex;");
+        line(2, "parser.step(" + literal(ruleName) + ", start);");
+        line(2, "RuleMemo memo = parser.memoFor(" + literal(ruleName) + ", start);");
+        line(2, "if (memo != null && memo.known(start)) return parser.recall(memo, start);");
+        line(0, "");
+        line(2, "int[] alternatives = parser.alternatives(" + literal(ruleName) + ", "
+             + exprCount + ", start);");
+        line(2, "int count = alternatives == null ? " + exprCount + " : alternatives.length;");
+        line(2, "ASTNode node = null;");
+        line(2, "for (int i = 0; i < count && node == null; i++) {");
+        line(3, "node = switch (alternatives == null ? i : alternatives[i]) {");
+        for (int i = 0; i < exprCount; i++) {
+            line(3, "case " + i + " -> " + method + "_" + i + "();");
+        }
+        line(3, "default -> null;");
+        line(3, "};");
+        line(3, "if (node == null) parser.tokenIndex = start;");
+        line(2, "}");
+        line(2, "return parser.finishRule(" + literal(ruleName) + ", memo, start, node);");
+        line(1, "}");
+
+        for (int i = 0; i < exprCount; i++) {
+            Expr expr = rule.exprs.get(i);
+            boolean hasModifiers = expr.terms.stream().anyMatch(term -> term.modifier != null);
+            line(0, "");
+            line(1, "ASTNode " + method + "_" + i + "()");
+            line(1, "{");
+            if (hasModifiers) {
+                emitBacktrackingExpr(ruleName, expr);
+            } else {
+                emitSequentialExpr(expr);
+            }
+            line(1, "}");
+        }
+    }
+
+    void emitSequentialExpr(Expr expr)
+    {
+        line(2, "ASTNode node = new ASTNode();");
+        for (Term term : expr.terms) {
+            String match = switch (term.type) {
+            case TERMINAL -> term.value.isEmpty() ? null : "terminal(node, " + literal(term.value) + ")";
+            case PATTERN -> patternMatch("node", term);
+            case NONTERMINAL ->
+                (term.inline ? "inline" : "nonterminal") + "(node, " + ruleCall(term.value) + ")";
+            };
+            if (match != null) line(2, "if (!" + match + ") return null;");
+        }
+        line(2, "return node;");
+    }
+
+    void emitBacktrackingExpr(String ruleName, Expr expr)
+    {
+        int termCount = expr.terms.size();
+        List<String> termMinimums = new ArrayList<>();
+        for (Term term : expr.terms) {
+            termMinimums.add(term.modifier == Modifier.ASTERISK ? "0" : "1");
+        }
+        String exprMinimums = "{" + String.join(", ", termMinimums) + "}";
+        if (!minimums.contains(exprMinimums)) minimums.add(exprMinimums);
+
+        // The match stack is the one of the depth of the expression, which the
+        // expressions parsed at the same depth reuse.
+        line(2, "MatchStack matches = parser.enterExpr(" + termCount + ");");
+        line(2, "int term = 0;");
+        line(2, "while (term < " + termCount + ") {");
+        line(3, "boolean failed = false;");
+        line(3, "switch (term) {");
+        for (int i = 0; i < termCount; i++) {
+            Term term = expr.terms.get(i);
+            String match = switch (term.type) {
+            case TERMINAL -> term.value.isEmpty() ?
+                "empty(matches, " + i + ", parser.tokenIndex)"
+                : "terminal(matches, " + i + ", " + literal(term.value) + ")";
+            case PATTERN -> patternMatch("matches, " + i, term);
+            case NONTERMINAL -> (term.inline ? "inline" : "nonterminal")
+                + "(matches, " + i + ", parser.tokenIndex, " + ruleCall(term.value) + ")";
+            };
+
+            line(3, "case " + i + ":");
+            if (term.modifier == null) {
+                line(4, "failed = !" + match + ";");
+            } else {
+                line(4, "while (" + match + ") { }");
+                if (term.modifier == Modifier.PLUS) {
+                    line(4, "failed = matches.counts[" + i + "] == 0;");
+                }
+            }
+            line(4, "break;");
+        }
+        line(3, "}");
+        line(3, "if (failed) {");
+        line(4, "term = backtrack(" + literal(ruleName) + ", matches, term, MINIMUMS_"
+             + minimums.indexOf(exprMinimums) + ");");
+        line(4, "if (term < 0) return exit(matches, null);");
+        line(3, "}");
+        line(3, "term++;");
+        line(2, "}");
+        line(2, "return exit(matches, build(matches));");
+    }
+
+    String patternMatch(String arguments, Term term)
+    {
+        if (term.tokenType != null) {
+            return "type(" + arguments + ", TokenType." + term.tokenType.name() + ")";
+        }
+        patterns.add(term.pattern.pattern());
+        return "pattern(" + arguments + ", PATTERN_" + (patterns.size() - 1) + ")";
+    }
+
+    String ruleCall(String ruleName)
+    {
+        return definitions.containsKey(ruleName) ?
+            ruleMethod(ruleName) + "()" : "parser.parseUndefinedRule(" + literal(ruleName) + ")";
+    }
+
+    /**
+     * Return the name of the method of the rule. Other characters are replaced
+     * with "$", so the subrules of `LeftFactoring`, such as RULE'1, don't take
+     * the names of the methods of the expressions, such as `parseRULE_1`.
+     */
+    static String ruleMethod(String ruleName)
+    {
+        StringBuilder method = new StringBuilder("parse");
+        for (char c : ruleName.toCharArray()) {
+            method.append(Character.isJavaIdentifierPart(c) ? c : '$');
+        }
+        return method.toString();
+    }
+
+    static String literal(String value)
+    {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+            case '"' -> literal.append("\\\"");
+            case '\\' -> literal.append("\\\\");
+            case '\n' -> literal.append("\\n");
+            case '\r' -> literal.append("\\r");
+            case '\t' -> literal.append("\\t");
+            default -> {
+                if (c < 0x20 || c > 0x7e) {
+                    // Unicode escapes would be translated before the literal is
+                    // read, so octal ones are used for control characters.
+                    literal.append(c < 0x20 ?
+                                   String.format("\\%03o", (int) c)
+                                   : String.format("\\u%04x", (int) c));
+                } else {
+                    literal.append(c);
+                }
+            }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    void line(int indentation, String text)
+    {
+        if (!text.isEmpty()) code.append("    ".repeat(indentation)).append(text);
+        code.append('\n');
+    }
+}
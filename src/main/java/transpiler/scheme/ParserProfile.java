@@ -0,0 +1,108 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profile of the rules parsed by the parsers it's given to, which is used to
+ * find the rules where the parse spends its time, and the alternatives which
+ * are tried in vain before the one that matches. The rules are interpreted
+ * while they're profiled, so the time is that of the interpreter.
+ *
+ * A profile isn't thread-safe, so it can only be shared by parsers which run
+ * one after the other.
+ */
+public class ParserProfile
+{
+    Map<String, RuleProfile> rules;
+
+    public ParserProfile()
+    {
+        this.rules = new HashMap<>();
+    }
+
+    RuleProfile rule(String ruleName, Rule rule)
+    {
+        RuleProfile ruleProfile = rules.get(ruleName);
+        if (ruleProfile == null) {
+            ruleProfile = new RuleProfile(ruleName, rule.exprs.size());
+            rules.put(ruleName, ruleProfile);
+        }
+        return ruleProfile;
+    }
+
+    /**
+     * Return the rules from the one which took the longest.
+     */
+    List<RuleProfile> sortedRules()
+    {
+        List<RuleProfile> sortedRules = new ArrayList<>(rules.values());
+        sortedRules.sort((a, b) -> a.counters.nanos != b.counters.nanos ?
+                         Long.compare(b.counters.nanos, a.counters.nanos)
+                         : a.ruleName.compareTo(b.ruleName));
+        return sortedRules;
+    }
+
+    /**
+     * Return a table of the counts of each rule, followed by those of its
+     * alternatives which were attempted, with the times in milliseconds.
+     */
+    public String report()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-28s %10s %10s %10s %10s %10s %12s%n",
+                                    "RULE", "attempts", "successes", "failures",
+                                    "backtracks", "tokens", "ms"));
+        for (RuleProfile ruleProfile : sortedRules()) {
+            report.append(ruleProfile.counters.format(ruleProfile.ruleName));
+            for (int i = 0; i < ruleProfile.alternatives.length; i++) {
+                ProfileCounters alternative = ruleProfile.alternatives[i];
+                if (alternative.attempts > 0) {
+                    report.append(alternative.format("  alternative " + i));
+                }
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Return the counts in JSON, in the same order as `report`, with the times
+     * in nanoseconds and every alternative of each rule.
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder("{\"rules\": [");
+        List<RuleProfile> sortedRules = sortedRules();
+        for (int i = 0; i < sortedRules.size(); i++) {
+            RuleProfile ruleProfile = sortedRules.get(i);
+            json.append(i == 0 ? "\n  " : ",\n  ");
+            json.append("{\"name\": \"").append(escapeJson(ruleProfile.ruleName)).append("\", ");
+            json.append(ruleProfile.counters.toJson()).append(", \"alternatives\": [");
+            for (int j = 0; j < ruleProfile.alternatives.length; j++) {
+                json.append(j == 0 ? "\n    " : ",\n    ");
+                json.append("{\"index\": ").append(j).append(", ");
+                json.append(ruleProfile.alternatives[j].toJson()).append("}");
+            }
+            json.append(ruleProfile.alternatives.length == 0 ? "]}" : "\n  ]}");
+        }
+        json.append(sortedRules.isEmpty() ? "]}" : "\n]}");
+        return json.toString();
+    }
+
+    static String escapeJson(String value)
+    {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < ' ') {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,3 @@
+package transpiler.scheme;
+
+enum ParserState {REPEAT, NEXT, STOP, BACKTRACK}
@@ -0,0 +1,239 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Alternatives of each rule which can match, by the next two tokens. Tokens are
+ * split in classes: one for each terminal of the grammar, and one for all the
+ * other tokens. An alternative is only left out when no match of it can start
+ * with the next tokens, so the alternatives which are left are tried in their
+ * original order and the result of the parse doesn't change.
+ */
+class PredictiveTables
+{
+    static PredictiveTables DEFAULT = null;
+
+    Map<String, Integer> terminalClasses;
+    // The last class is for the tokens which aren't terminals of the grammar.
+    int classCount;
+    Map<String, int[][]> alternativeSets;
+    // For each rule, the index of the set of alternatives in `alternativeSets`,
+    // by `first * (classCount + 1) + second`, where `classCount` is the end of
+    // the code. The last entry is for when the code has already ended.
+    Map<String, char[]> tables;
+    // For each rule, the keys of `tables` where one of the alternatives which
+    // are left out could match the first token, so it would only fail at the
+    // second one.
+    Map<String, BitSet> secondTokenFailures;
+
+    static synchronized PredictiveTables forDefinitions(Map<String, Rule> definitions)
+    {
+        if (definitions != SchemeParser.DEFAULT_DEFINITIONS) {
+            return new PredictiveTables(definitions);
+        }
+        if (DEFAULT == null) {
+            DEFAULT = new PredictiveTables(definitions);
+        }
+        return DEFAULT;
+    }
+
+    public PredictiveTables(Map<String, Rule> definitions)
+    {
+        this();
+        classifyTerminals(definitions);
+
+        Map<String, Lookahead> ruleLookaheads = computeRuleLookaheads(definitions);
+        for (Map.Entry<String, Rule> entry : definitions.entrySet()) {
+            List<Lookahead> exprLookaheads = new ArrayList<>();
+            for (Expr expr : entry.getValue().exprs) {
+                exprLookaheads.add(exprLookahead(expr, ruleLookaheads));
+            }
+            buildTable(entry.getKey(), exprLookaheads);
+        }
+    }
+
+    /**
+     * Tables without any rule, which only compute the lookaheads of the terms
+     * once their terminals are classified.
+     */
+    PredictiveTables()
+    {
+        this.terminalClasses = new HashMap<>();
+        this.classCount = 1;
+        this.alternativeSets = new HashMap<>();
+        this.tables = new HashMap<>();
+        this.secondTokenFailures = new HashMap<>();
+    }
+
+    void classifyTerminals(Map<String, Rule> definitions)
+    {
+        for (Rule rule : definitions.values()) {
+            for (Expr expr : rule.exprs) {
+                for (Term term : expr.terms) {
+                    if (term.type == TermType.TERMINAL && !term.value.isEmpty()) {
+                        terminalClasses.putIfAbsent(term.value, terminalClasses.size());
+                    }
+                }
+            }
+        }
+        classCount = terminalClasses.size() + 1;
+    }
+
+    int terminalClass(String value)
+    {
+        Integer tokenClass = terminalClasses.get(value);
+        return tokenClass == null ? classCount - 1 : tokenClass;
+    }
+
+    /**
+     * Return the indexes of the alternatives of the rule which can match when
+     * the next tokens are of the given classes, or null if the rule isn't known.
+     * A class of -1 means the code has ended.
+     */
+    int[] alternatives(String ruleName, int first, int second)
+    {
+        char[] table = tables.get(ruleName);
+        if (table == null) return null;
+
+        return alternativeSets.get(ruleName)[table[key(table, first, second)]];
+    }
+
+    /**
+     * Return how many tokens after the next one the alternatives of the rule
+     * which are left out would fail: 1 if one of them could match the first
+     * token, and 0 otherwise.
+     */
+    int failureOffset(String ruleName, int first, int second)
+    {
+        char[] table = tables.get(ruleName);
+        return secondTokenFailures.get(ruleName).get(key(table, first, second)) ? 1 : 0;
+    }
+
+    int key(char[] table, int first, int second)
+    {
+        return first < 0 ?
+            table.length - 1 : first * (classCount + 1) + (second < 0 ? classCount : second);
+    }
+
+    Map<String, Lookahead> computeRuleLookaheads(Map<String, Rule> definitions)
+    {
+        Map<String, Lookahead> ruleLookaheads = new HashMap<>();
+        for (String ruleName : definitions.keySet()) {
+            ruleLookaheads.put(ruleName, new Lookahead());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Rule> entry : definitions.entrySet()) {
+                Lookahead lookahead = new Lookahead();
+                for (Expr expr : entry.getValue().exprs) {
+                    lookahead.union(exprLookahead(expr, ruleLookaheads));
+                }
+                if (!lookahead.equals(ruleLookaheads.get(entry.getKey()))) {
+                    ruleLookaheads.put(entry.getKey(), lookahead);
+                    changed = true;
+                }
+            }
+        }
+        return ruleLookaheads;
+    }
+
+    Lookahead exprLookahead(Expr expr, Map<String, Lookahead> ruleLookaheads)
+    {
+        Lookahead lookahead = Lookahead.empty();
+        for (Term term : expr.terms) {
+            lookahead = lookahead.concat(termLookahead(term, ruleLookaheads), classCount);
+        }
+        return lookahead;
+    }
+
+    Lookahead termLookahead(Term term, Map<String, Lookahead> ruleLookaheads)
+    {
+        Lookahead lookahead;
+        switch (term.type) {
+        case TERMINAL:
+            if (term.value.isEmpty()) return Lookahead.empty();
+            lookahead = new Lookahead();
+            lookahead.singles.set(terminalClass(term.value));
+            break;
+        case PATTERN:
+            // The pattern could match any token which isn't a terminal.
+            lookahead = new Lookahead();
+            Pattern pattern = Pattern.compile("^" + term.value);
+            for (Map.Entry<String, Integer> entry : terminalClasses.entrySet()) {
+                if (pattern.matcher(entry.getKey()).find()) {
+                    lookahead.singles.set(entry.getValue());
+                }
+            }
+            lookahead.singles.set(classCount - 1);
+            break;
+        default:
+            // An undefined rule could match anything, as far as we know.
+            lookahead = ruleLookaheads.get(term.value);
+            if (lookahead == null) lookahead = Lookahead.any(classCount);
+            break;
+        }
+
+        if (term.modifier == null) return lookahead;
+
+        // X* is the fixpoint of "" | X X*, and X+ is X X*.
+        Lookahead repetition = Lookahead.empty();
+        while (true) {
+            Lookahead next = Lookahead.empty();
+            next.union(lookahead.concat(repetition, classCount));
+            if (next.equals(repetition)) break;
+            repetition = next;
+        }
+        return term.modifier == Modifier.ASTERISK ?
+            repetition : lookahead.concat(repetition, classCount);
+    }
+
+    void buildTable(String ruleName, List<Lookahead> exprLookaheads)
+    {
+        List<int[]> sets = new ArrayList<>();
+        Map<List<Integer>, Integer> setIndexes = new HashMap<>();
+        char[] table = new char[classCount * (classCount + 1) + 1];
+        BitSet failures = new BitSet();
+        List<BitSet> exprFirsts = new ArrayList<>();
+        for (Lookahead lookahead : exprLookaheads) {
+            exprFirsts.add(lookahead.firsts(classCount));
+        }
+
+        for (int key = 0; key < table.length; key++) {
+            int first = key == table.length - 1 ? -1 : key / (classCount + 1);
+            int second = first < 0 || key % (classCount + 1) == classCount ?
+                -1 : key % (classCount + 1);
+
+            List<Integer> alternatives = new ArrayList<>();
+            for (int i = 0; i < exprLookaheads.size(); i++) {
+                Lookahead lookahead = exprLookaheads.get(i);
+                boolean viable = lookahead.nullable
+                    || (first >= 0 && lookahead.singles.get(first))
+                    || (second >= 0 && lookahead.pairs.get(first * classCount + second));
+                if (viable) {
+                    alternatives.add(i);
+                } else if (first >= 0 && exprFirsts.get(i).get(first)) {
+                    failures.set(key);
+                }
+            }
+
+            Integer setIndex = setIndexes.get(alternatives);
+            if (setIndex == null) {
+                setIndex = sets.size();
+                setIndexes.put(alternatives, setIndex);
+                sets.add(alternatives.stream().mapToInt(Integer::intValue).toArray());
+            }
+            table[key] = (char) (int) setIndex;
+        }
+
+        tables.put(ruleName, table);
+        secondTokenFailures.put(ruleName, failures);
+        alternativeSets.put(ruleName, sets.toArray(new int[0][]));
+    }
+}
@@ -0,0 +1,45 @@
+package transpiler.scheme;
+
+/**
+ * Counts of the parses of a rule, or of one of its alternatives. Tokens are
+ * only consumed by successes, and the time of a rule includes the rules it
+ * parses.
+ */
+class ProfileCounters
+{
+    long attempts;
+    long successes;
+    long failures;
+    long backtracks;
+    long tokens;
+    long nanos;
+
+    void count(boolean matched, int tokenCount, int backtrackCount, long elapsedNanos)
+    {
+        attempts++;
+        if (matched) {
+            successes++;
+            tokens += tokenCount;
+        } else {
+            failures++;
+        }
+        backtracks += backtrackCount;
+        nanos += elapsedNanos;
+    }
+
+    String format(String name)
+    {
+        return String.format("%-28s %10d %10d %10d %10d %10d %12.3f%n",
+                             name, attempts, successes, failures, backtracks, tokens, nanos / 1e6);
+    }
+
+    String toJson()
+    {
+        return "\"attempts\": " + attempts
+            + ", \"successes\": " + successes
+            + ", \"failures\": " + failures
+            + ", \"backtracks\": " + backtracks
+            + ", \"tokens\": " + tokens
+            + ", \"nanos\": " + nanos;
+    }
+}
@@ -0,0 +1,31 @@
+package transpiler.scheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class Rule
+{
+    List<Expr> exprs;
+    // Whether the rule is only matched by inline terms, so its nodes are
+    // always merged into others.
+    boolean inline;
+
+    public Rule()
+    {
+        this.exprs = new ArrayList<Expr>();
+        this.inline = false;
+    }
+
+    public Rule(Expr... exprs)
+    {
+        this.exprs = Arrays.asList(exprs);
+        this.inline = false;
+    }
+
+    public Rule(List<Expr> exprs)
+    {
+        this.exprs = exprs;
+        this.inline = false;
+    }
+}
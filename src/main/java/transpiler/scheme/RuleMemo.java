@@ -0,0 +1,41 @@
+package transpiler.scheme;
+
+import transpiler.ASTNode;
+
+/**
+ * Results of a rule by token position, from an offset. An end of 0 means the
+ * rule wasn't parsed at the position yet, -1 that it failed, and otherwise the
+ * end index plus 1.
+ */
+class RuleMemo
+{
+    // Estimated size of a reference (with compressed pointers) and of an array
+    // header, in bytes.
+    static int REFERENCE_SIZE = 4;
+    static int ARRAY_HEADER_SIZE = 16;
+
+    int offset;
+    ASTNode[] nodes;
+    int[] ends;
+    long lookups;
+    long hits;
+
+    public RuleMemo(int offset, int positionCount)
+    {
+        this.offset = offset;
+        this.nodes = new ASTNode[positionCount];
+        this.ends = new int[positionCount];
+        this.lookups = 0;
+        this.hits = 0;
+    }
+
+    boolean known(int index)
+    {
+        return ends[index - offset] != 0;
+    }
+
+    long size()
+    {
+        return 2L * ARRAY_HEADER_SIZE + (long) ends.length * (REFERENCE_SIZE + Integer.BYTES);
+    }
+}
@@ -0,0 +1,38 @@
+package transpiler.scheme;
+
+/**
+ * Counts of a rule and of each of its alternatives, by their index in the
+ * definition. Alternatives skipped by the predictive tables aren't attempted,
+ * and results recalled from the memo tables only count for the rule.
+ */
+class RuleProfile
+{
+    String ruleName;
+    ProfileCounters counters;
+    ProfileCounters[] alternatives;
+
+    public RuleProfile(String ruleName, int exprCount)
+    {
+        this.ruleName = ruleName;
+        this.counters = new ProfileCounters();
+        this.alternatives = new ProfileCounters[exprCount];
+        for (int i = 0; i < exprCount; i++) {
+            this.alternatives[i] = new ProfileCounters();
+        }
+    }
+
+    void countAlternative(int exprIndex,
+                          boolean matched,
+                          int tokenCount,
+                          int backtrackCount,
+                          long elapsedNanos)
+    {
+        alternatives[exprIndex].count(matched, tokenCount, backtrackCount, elapsedNanos);
+        counters.backtracks += backtrackCount;
+    }
+
+    void countRule(boolean matched, int tokenCount, long elapsedNanos)
+    {
+        counters.count(matched, tokenCount, 0, elapsedNanos);
+    }
+}
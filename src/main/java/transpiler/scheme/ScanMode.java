@@ -0,0 +1,8 @@
+package transpiler.scheme;
+
+public enum ScanMode {
+    // Try the token definitions one after the other with java.util.regex.
+    REGEX,
+    // Run the token definitions compiled into a single table-driven automaton.
+    DFA,
+};
@@ -1,106 +1,32 @@
 package transpiler.scheme;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ListIterator;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import transpiler.ASTNode;
-
-enum ParserState {REPEAT, NEXT, STOP, BACKTRACK}
-
-enum Modifier {PLUS, ASTERISK}
-
-enum TermType {TERMINAL, NONTERMINAL, PATTERN}
-
-class TermMatch
-{
-    Integer index;
-    Object value;
-
-    public TermMatch(Integer index, Object value)
-    {
-        this.index = index;
-        this.value = value;
-    }
-}
-
-class Term
-{
-    String value;
-    TermType type;
-    Modifier modifier;
-
-    public Term()
-    {
-        this.value = null;
-        this.type = null;
-        this.modifier = null;
-    }
-
-    public Term(String value, TermType type)
-    {
-        this.value = value;
-        this.type = type;
-        this.modifier = null;
-    }
-
-    public Term(String value, TermType type, Modifier modifier)
-    {
-        this.value = value;
-        this.type = type;
-        this.modifier = modifier;
-    }
-}
-
-class Expr
-{
-    List<Term> terms;
-
-    public Expr()
-    {
-        this.terms = new ArrayList<Term>();
-    }
-
-    public Expr(Term... terms)
-    {
-        this.terms = Arrays.asList(terms);
-    }
-
-    public Expr(List<Term> terms)
-    {
-        this.terms = terms;
-    }
-}
-
-class Rule
-{
-    List<Expr> exprs;
-
-    public Rule()
-    {
-        this.exprs = new ArrayList<Expr>();
-    }
-
-    public Rule(Expr... exprs)
-    {
-        this.exprs = Arrays.asList(exprs);
-    }
-
-    public Rule(List<Expr> exprs)
-    {
-        this.exprs = exprs;
-    }
-}
+import transpiler.WrapperChains;
 
 public class SchemeParser
 {
+    // The deadline of a parse is checked every time this many rules are entered.
+    static int DEADLINE_CHECK_STEPS = 1 << 10;
+
     static Map<String, Rule> DEFAULT_DEFINITIONS =
         buildDefinitions(
                /* Programs and definitions */
@@ -298,19 +224,180 @@ public class SchemeParser
                "UINTEGER_10", nonterminal(SchemeScanner.UINTEGER(10))
                );
 
-    ListIterator<Token> tokenIter;
+    TokenBuffer tokens;
+    // Index of the next token to be matched.
+    int tokenIndex;
+    // Index of the furthest token which a terminal or a pattern failed to match,
+    // where a syntax error is reported.
+    int furthestFailureIndex;
     Map<String, Rule> definitions;
+    // Names of the memoized rules. Their tables are only created when they're
+    // first used.
+    Set<String> memoizedRules;
+    Map<String, RuleMemo> memo;
+    // Token positions where the rules are memoized, both included.
+    int memoStart;
+    int memoEnd;
+    // Alternatives of the rules by the next two tokens, or null if every
+    // alternative is tried.
+    PredictiveTables predictiveTables;
+    // Lookahead classes of the tokens plus 1, or 0 if they weren't found yet.
+    int[] tokenClasses;
+    // Parser generated from the definitions, or null if they're interpreted.
+    CompiledParser compiledParser;
+    // Interpreter with an explicit stack, or null if the rules are parsed by
+    // recursive calls.
+    IterativeParser iterativeParser;
+    // Matches of the expressions being interpreted, by their depth.
+    MatchStack[] matchStacks;
+    int exprDepth;
+    // Backtracks of the last expression which was interpreted.
+    int exprBacktracks;
+    // Profile of the rules, or null if they aren't profiled.
+    ParserProfile profile;
+    // Limits of the rules entered and of the backtracks, and the System.nanoTime
+    // by which the parse must end, if it has a deadline.
+    long maxSteps;
+    long maxBacktracks;
+    long deadline;
+    boolean hasDeadline;
+    // Rules entered and backtracks so far, and the number of steps after which
+    // the limits are checked again.
+    long steps;
+    long backtracks;
+    long nextCheck;
+    // Steps and backtracks of this parser and of its forks together, or null
+    // if it wasn't forked. The steps are added to them when the limits are
+    // checked, and those added so far are counted in `addedSteps`.
+    AtomicLong sharedSteps;
+    AtomicLong sharedBacktracks;
+    long addedSteps;
+    // Forms of the incremental parse, or null if the parser wasn't asked for
+    // one.
+    IncrementalParse incrementalParse;
+    // Whether the nodes with a single child are collapsed into it, and the
+    // wrappers of the collapsed nodes, shared by the parsers of the same parse.
+    boolean compact;
+    WrapperChains wrapperChains;
+
+    public SchemeParser(TokenBuffer tokens, Map<String, Rule> definitions)
+    {
+        this(tokens, definitions, new int[tokens.size()]);
+    }
 
-    public SchemeParser(List<Token> tokenList, Map<String, Rule> definitions)
+    SchemeParser(TokenBuffer tokens, Map<String, Rule> definitions, int[] tokenClasses)
     {
-        this.tokenIter = tokenList.listIterator();
+        this.tokens = tokens;
+        this.tokenIndex = 0;
+        this.furthestFailureIndex = 0;
         this.definitions = definitions;
+        this.memoizedRules = Set.of();
+        this.memo = new HashMap<>();
+        this.memoStart = 0;
+        this.memoEnd = tokens.size();
+        this.predictiveTables = PredictiveTables.forDefinitions(definitions);
+        this.tokenClasses = tokenClasses;
+        this.compiledParser = definitions == DEFAULT_DEFINITIONS ?
+            CompiledParser.forDefaultDefinitions(this) : null;
+        this.iterativeParser = null;
+        this.matchStacks = new MatchStack[16];
+        this.exprDepth = 0;
+        this.exprBacktracks = 0;
+        this.profile = null;
+        this.maxSteps = Long.MAX_VALUE;
+        this.maxBacktracks = Long.MAX_VALUE;
+        this.deadline = 0;
+        this.hasDeadline = false;
+        this.steps = 0;
+        this.backtracks = 0;
+        this.nextCheck = Long.MAX_VALUE;
+        this.sharedSteps = null;
+        this.sharedBacktracks = null;
+        this.addedSteps = 0;
+        this.incrementalParse = null;
+        this.compact = false;
+        this.wrapperChains = null;
+    }
+
+    /**
+     * Return a parser of the same tokens with the same options, which only
+     * memoizes the rules between the given positions. The lookahead classes of
+     * the tokens are shared, so parsers of different parts of the code can run
+     * at the same time.
+     */
+    SchemeParser fork(int start, int end)
+    {
+        SchemeParser parser = new SchemeParser(tokens, definitions, tokenClasses);
+        copyOptionsTo(parser);
+        parser.tokenIndex = start;
+        parser.furthestFailureIndex = start;
+        parser.memoStart = start;
+        parser.memoEnd = end;
+        // The profile isn't thread-safe, so forks aren't profiled. Their steps
+        // and backtracks count towards the same limits as this parser's.
+        parser.profile = null;
+        parser.sharedSteps = sharedSteps;
+        parser.sharedBacktracks = sharedBacktracks;
+        parser.updateNextCheck();
+        return parser;
+    }
+
+    /**
+     * Count the steps and backtracks of this parser and of its forks together,
+     * so the limits bound the whole parse rather than each fork. It's called
+     * before the parser is forked, from the thread which owns it.
+     */
+    void shareBudget()
+    {
+        if (sharedSteps != null) return;
+        sharedSteps = new AtomicLong(steps);
+        sharedBacktracks = new AtomicLong(backtracks);
+        addedSteps = steps;
+        updateNextCheck();
+    }
+
+    /**
+     * Return a parser of other tokens with the same options.
+     */
+    SchemeParser withTokens(TokenBuffer otherTokens)
+    {
+        SchemeParser parser = new SchemeParser(otherTokens, definitions);
+        copyOptionsTo(parser);
+        return parser;
+    }
+
+    /**
+     * Give a parser of the same definitions the options of this one.
+     */
+    void copyOptionsTo(SchemeParser parser)
+    {
+        parser.memoizedRules = memoizedRules;
+        parser.predictiveTables = predictiveTables;
+        if (compiledParser == null) parser.compiledParser = null;
+        if (iterativeParser != null) parser.iterativeParser = new IterativeParser(parser);
+        parser.profile = profile;
+        parser.maxSteps = maxSteps;
+        parser.maxBacktracks = maxBacktracks;
+        parser.deadline = deadline;
+        parser.hasDeadline = hasDeadline;
+        parser.updateNextCheck();
+        parser.compact = compact;
+        parser.wrapperChains = wrapperChains;
+    }
+
+    public SchemeParser(TokenBuffer tokens)
+    {
+        this(tokens, DEFAULT_DEFINITIONS);
+    }
+
+    public SchemeParser(List<Token> tokenList, Map<String, Rule> definitions)
+    {
+        this(TokenBuffer.of(tokenList), definitions);
     }
 
     public SchemeParser(List<Token> tokenList)
     {
-        this.tokenIter = tokenList.listIterator();
-        this.definitions = DEFAULT_DEFINITIONS;
+        this(TokenBuffer.of(tokenList), DEFAULT_DEFINITIONS);
     }
 
     static Expr convertToExpr(Object obj)
@@ -395,6 +482,10 @@ public class SchemeParser
         };
     }
 
+    /**
+     * Build the definitions from (name, rule) pairs, with the common prefixes
+     * of their alternatives left-factored.
+     */
     static Map<String, Rule> buildDefinitions(Object... objs)
     {
         Map<String, Rule> map = new HashMap<>();
@@ -405,7 +496,145 @@ public class SchemeParser
                 throw new RuntimeException("Expected (String, Rule) pair.");
             }
         }
-        return map;
+        return LeftFactoring.factor(map);
+    }
+
+    /**
+     * Memoize the results of the rules by token position (packrat parsing), so
+     * that none of them is parsed twice at the same position. With every rule
+     * memoized, parsing takes linear time, but each table takes memory
+     * proportional to the number of tokens.
+     */
+    public void memoize(Collection<String> ruleNames)
+    {
+        memoizedRules = new HashSet<>(ruleNames);
+    }
+
+    public void memoizeAll()
+    {
+        memoize(definitions.keySet());
+    }
+
+    /**
+     * Return the estimated memory taken by the memo tables, in bytes.
+     */
+    public long memoSize()
+    {
+        long size = 0;
+        for (RuleMemo ruleMemo : memo.values()) {
+            size += ruleMemo.size();
+        }
+        return size;
+    }
+
+    /**
+     * Return the lookups, hits and estimated memory of each memo table.
+     */
+    public String memoReport()
+    {
+        StringBuilder report = new StringBuilder();
+        for (String ruleName : new TreeSet<>(memo.keySet())) {
+            RuleMemo ruleMemo = memo.get(ruleName);
+            report.append(String.format("%-24s %10d lookups %10d hits %12d bytes%n",
+                                        ruleName,
+                                        ruleMemo.lookups,
+                                        ruleMemo.hits,
+                                        ruleMemo.size()));
+        }
+        report.append(String.format("%-24s %44d bytes%n", "TOTAL", memoSize()));
+        return report.toString();
+    }
+
+    /**
+     * Choose whether to skip the alternatives of a rule which can't start with
+     * the next two tokens, which is done by default. Either way, the result of
+     * the parse is the same.
+     */
+    public void predict(boolean enabled)
+    {
+        predictiveTables = enabled ? PredictiveTables.forDefinitions(definitions) : null;
+    }
+
+    /**
+     * Choose whether to use the parser generated from the default definitions
+     * by `ParserGenerator`, which is done by default when it's on the class
+     * path, or to interpret the definitions. Either way, the result of the
+     * parse is the same.
+     */
+    public void useCompiledParser(boolean enabled)
+    {
+        compiledParser = enabled && definitions == DEFAULT_DEFINITIONS ?
+            CompiledParser.forDefaultDefinitions(this) : null;
+    }
+
+    /**
+     * Choose whether to parse with an explicit stack instead of recursive
+     * calls, so the nesting of the code is only limited by the heap. Either
+     * way, the result of the parse is the same. Otherwise, the code is only
+     * parsed this way when it's nested too deeply for the thread's stack.
+     */
+    public void useExplicitStack(boolean enabled)
+    {
+        iterativeParser = enabled ? new IterativeParser(this) : null;
+    }
+
+    /**
+     * Choose whether to build a compact AST, where each node with no value and
+     * a single child which starts with it is collapsed into the child, keeping
+     * its type as one of the child's wrappers. The paths of `ASTNode` go
+     * through the wrappers, and `ASTNode.expandWrappers` turns the compact AST
+     * into the one which is built otherwise. The PROGRAM node is never
+     * collapsed.
+     */
+    public void compact(boolean enabled)
+    {
+        compact = enabled;
+        wrapperChains = enabled ? new WrapperChains() : null;
+    }
+
+    /**
+     * Count the attempts, successes, failures, backtracks, tokens and time of
+     * each rule and alternative parsed from now on in the profile, or stop
+     * profiling if it's null. The rules are interpreted while they're profiled.
+     */
+    public void profile(ParserProfile profile)
+    {
+        this.profile = profile;
+    }
+
+    /**
+     * Limit the number of rules the parser enters, including those whose
+     * results are recalled from the memo tables. A parse which goes over a
+     * limit fails with a `ParseBudgetException`, whatever the way the rules are
+     * parsed. The steps of `parseParallel` are those of all its threads, which
+     * are added up every `DEADLINE_CHECK_STEPS` rules, so it may go a little
+     * over the limit.
+     */
+    public void limitSteps(long maxSteps)
+    {
+        this.maxSteps = maxSteps;
+        updateNextCheck();
+    }
+
+    /**
+     * Limit the number of times the parser backtracks over the matches of the
+     * terms with modifiers, which is what makes some inputs take exponential
+     * time.
+     */
+    public void limitBacktracks(long maxBacktracks)
+    {
+        this.maxBacktracks = maxBacktracks;
+    }
+
+    /**
+     * Limit the time the parser takes from now on. The time is only checked
+     * every `DEADLINE_CHECK_STEPS` rules, so the parse may go a little over it.
+     */
+    public void limitTime(Duration timeout)
+    {
+        deadline = System.nanoTime() + timeout.toNanos();
+        hasDeadline = true;
+        nextCheck = Math.min(nextCheck, steps);
     }
 
     public ASTNode parse()
@@ -413,129 +642,519 @@ public class SchemeParser
         return parse("PROGRAM");
     }
 
+    /**
+     * Parse the program with its top-level forms split between the threads of
+     * the pool. The result is the same as `parse`'s.
+     */
+    public ASTNode parseParallel(ForkJoinPool pool)
+    {
+        if (definitions != DEFAULT_DEFINITIONS) return parse();
+        return ParallelParse.parse(this, pool);
+    }
+
+    public ASTNode parseParallel()
+    {
+        return parseParallel(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parse the program by reading its data first, and then choosing the rule
+     * of each form by its head symbol, in time linear in the number of tokens.
+     * The result is the same as `parse`'s, which also parses the forms that
+     * can't be told apart by their data and reports the errors.
+     */
+    public ASTNode parseData()
+    {
+        if (definitions != DEFAULT_DEFINITIONS) return parse();
+
+        ASTNode program = new FormClassifier(this).classifyProgram();
+        if (program != null) {
+            if (compact) collapseWrappers(program);
+            return program;
+        }
+
+        tokenIndex = 0;
+        furthestFailureIndex = 0;
+        return parse();
+    }
+
+    /**
+     * Parse the program, leaving out the top-level forms with syntax errors,
+     * which are given by `syntaxErrors`. A "(" at the start of a line always
+     * starts a new form, so an unbalanced parenthesis only breaks the form
+     * where it is. Without errors, the program is the same as `parse`'s.
+     *
+     * The forms are kept, so that the parser which `edit` returns only parses
+     * the forms around the edit again, and reuses the nodes of the others.
+     */
+    public ASTNode parseIncrementally()
+    {
+        if (incrementalParse == null) incrementalParse = new IncrementalParse(this);
+        return incrementalParse.program();
+    }
+
+    /**
+     * Return the errors of the forms which `parseIncrementally` left out, in
+     * the order of the forms.
+     */
+    public List<RuntimeException> syntaxErrors()
+    {
+        if (incrementalParse == null) incrementalParse = new IncrementalParse(this);
+        return incrementalParse.errors();
+    }
+
+    /**
+     * Return the line and column of a node of the program which
+     * `parseIncrementally` gave, in the code of this parser. The nodes which
+     * an edit reused keep the positions they were parsed at, so their own
+     * `describeLocation` is in the code they were parsed from.
+     */
+    public String describeLocation(ASTNode node)
+    {
+        if (incrementalParse == null) return node.describeLocation();
+        return incrementalParse.describeLocation(node);
+    }
+
+    /**
+     * Return a parser with the same options of the code after an edit which
+     * removed `removedLength` characters at `offset`, and inserted
+     * `insertedText` there. The code is scanned again with
+     * `SchemeScanner.rescan`, and if this parser parsed it incrementally, so
+     * does the new one, parsing only the forms which changed.
+     */
+    public SchemeParser edit(int offset, int removedLength, String insertedText, ScanMode mode)
+    {
+        TokenBuffer newTokens = SchemeScanner.rescan(tokens, offset, removedLength, insertedText, mode);
+        SchemeParser parser = withTokens(newTokens);
+        if (incrementalParse != null) {
+            parser.incrementalParse = new IncrementalParse(parser,
+                                                           incrementalParse,
+                                                           offset,
+                                                           removedLength,
+                                                           insertedText.length());
+        }
+        return parser;
+    }
+
+    /**
+     * Return the top-level forms of the program, which are the children of the
+     * PROGRAM node `parse` gives, each parsed once its tokens are read.
+     */
+    public static Iterator<ASTNode> parseForms(Iterator<Token> tokens)
+    {
+        return parseForms(tokens, null);
+    }
+
+    /**
+     * Return the top-level forms, counting the rules parsed for them in the
+     * profile, unless it's null.
+     */
+    public static Iterator<ASTNode> parseForms(Iterator<Token> tokens, ParserProfile profile)
+    {
+        return parseForms(tokens, profile, false);
+    }
+
+    /**
+     * Return the top-level forms, which are compact, as `compact` builds them,
+     * if `compact` is true.
+     */
+    public static Iterator<ASTNode> parseForms(Iterator<Token> tokens,
+                                               ParserProfile profile,
+                                               boolean compact)
+    {
+        return new FormStream(tokens, profile, compact);
+    }
+
+    public static Stream<ASTNode> streamForms(Iterator<Token> tokens)
+    {
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(parseForms(tokens),
+                                                Spliterator.ORDERED | Spliterator.NONNULL),
+            false);
+    }
+
     public ASTNode parse(String rootRule)
     {
-        ASTNode ast = parseRule(rootRule);
-        if (tokenIter.hasNext()) {
-            throw new RuntimeException("Something bad happened.");
+        int start = tokenIndex;
+        exprDepth = 0;
+        ASTNode ast;
+        try {
+            ast = parseRule(rootRule);
+        } catch (StackOverflowError e) {
+            if (iterativeParser != null) throw e;
+
+            ast = reparseIteratively(rootRule, start);
+        }
+        if (tokenIndex < tokens.size()) {
+            throw unexpectedToken(Math.max(furthestFailureIndex, tokenIndex));
         }
         return ast;
     }
 
+    /**
+     * Parse the rule again from the index with an explicit stack, after the
+     * recursive calls ran out of stack.
+     */
+    ASTNode reparseIteratively(String ruleName, int start)
+    {
+        // The memo tables only have the rules which were finished, but they're
+        // dropped so the failures inside them are found again.
+        memo.clear();
+        exprDepth = 0;
+        tokenIndex = start;
+        furthestFailureIndex = start;
+        return new IterativeParser(this).parseRule(ruleName);
+    }
+
+    RuntimeException unexpectedToken(int index)
+    {
+        String found = index < tokens.size() ?
+            "token \"" + tokens.value(index) + "\"" : "end of code";
+        return new RuntimeException("Unexpected " + found + " at "
+                                    + tokens.lineIndex().describe(tokens.position(index))
+                                    + ".");
+    }
+
     ASTNode parseRule(String ruleName) {
-        ASTNode node = null;
+        if (iterativeParser != null) return iterativeParser.parseRule(ruleName);
+        if (compiledParser != null && profile == null) return compiledParser.parseRule(ruleName);
+
         Rule rule = definitions.get(ruleName);
-        int curIndex = tokenIter.nextIndex() - 1;
+        if (rule == null) throw undefinedRule(ruleName);
+
+        int curIndex = tokenIndex;
+        step(ruleName, curIndex);
+        RuleProfile ruleProfile = profile == null ? null : profile.rule(ruleName, rule);
+        long ruleStartTime = ruleProfile == null ? 0 : System.nanoTime();
+        RuleMemo ruleMemo = memoFor(ruleName, curIndex);
+        if (ruleMemo != null && ruleMemo.known(curIndex)) {
+            ASTNode node = recall(ruleMemo, curIndex);
+            if (ruleProfile != null) {
+                ruleProfile.countRule(node != null, tokenIndex - curIndex, System.nanoTime() - ruleStartTime);
+            }
+            return node;
+        }
+
+        ASTNode node = null;
+        int[] alternatives = alternatives(ruleName, rule.exprs.size(), curIndex);
 
         // Try to match one of the expressions in the rule.
-        for (Expr expr : rule.exprs) {
-            node = parseExpr(expr);
-            if (node != null) {
-                node.type = ruleName;
-                break;
+        int exprCount = alternatives == null ? rule.exprs.size() : alternatives.length;
+        for (int i = 0; i < exprCount; i++) {
+            int exprIndex = alternatives == null ? i : alternatives[i];
+            long exprStartTime = ruleProfile == null ? 0 : System.nanoTime();
+            node = parseExpr(ruleName, rule.exprs.get(exprIndex));
+            if (ruleProfile != null) {
+                ruleProfile.countAlternative(exprIndex, node != null, tokenIndex - curIndex,
+                                             exprBacktracks, System.nanoTime() - exprStartTime);
             }
+            if (node != null) break;
 
             // Reset position of cursor if expression doesn't match.
-            moveIteratorTo(tokenIter, curIndex);
+            tokenIndex = curIndex;
         }
 
+        node = finishRule(ruleName, ruleMemo, curIndex, node);
+        if (ruleProfile != null) {
+            ruleProfile.countRule(node != null, tokenIndex - curIndex, System.nanoTime() - ruleStartTime);
+        }
         return node;
     }
 
-    ASTNode parseExpr(Expr expr)
+    /*
+     * The following methods are shared by the interpreter and the compiled
+     * parsers.
+     */
+
+    RuntimeException undefinedRule(String ruleName)
     {
-        ListIterator<Term> termIter = expr.terms.listIterator();
-        Term term = termIter.next();
-        Map<Term, List<TermMatch>> termMatches = new LinkedHashMap<>();
-        termMatches.put(term, new ArrayList<>());
+        return new RuntimeException("The rule " + ruleName + " is not defined.");
+    }
 
-        while (true) {
-            TermMatch match = matchTerm(term);
-            boolean termMatched = match != null;
+    ASTNode parseUndefinedRule(String ruleName)
+    {
+        throw undefinedRule(ruleName);
+    }
 
-            if (termMatched) {
-                termMatches.get(term).add(match);
-            }
+    /**
+     * Return the memo table of the rule, or null if it isn't memoized at the
+     * index.
+     */
+    RuleMemo memoFor(String ruleName, int index)
+    {
+        if (index < memoStart || index > memoEnd || !memoizedRules.contains(ruleName)) {
+            return null;
+        }
 
-            ParserState currentState = getCurrenState(term,
-                                                      termIter,
-                                                      termMatched,
-                                                      termMatches);
+        RuleMemo ruleMemo = memo.computeIfAbsent(ruleName,
+                                                 name -> new RuleMemo(memoStart, memoEnd - memoStart + 1));
+        ruleMemo.lookups++;
+        return ruleMemo;
+    }
 
-            if (currentState == ParserState.STOP) {
-                return buildASTFromTermMatches(termMatches);
-            }
+    /**
+     * Return the memoized result of a rule at the index, which must be known,
+     * and move the cursor after it.
+     */
+    ASTNode recall(RuleMemo ruleMemo, int index)
+    {
+        ruleMemo.hits++;
+        int end = ruleMemo.ends[index - ruleMemo.offset];
+        if (end < 0) return null;
+        tokenIndex = end - 1;
+        ASTNode node = ruleMemo.nodes[index - ruleMemo.offset];
+        // The children may have been taken by a node which collapsed it.
+        if (compact) node.setChildren(node.children);
+        return node;
+    }
 
-            if (currentState == ParserState.BACKTRACK) {
-                try {
-                    backtrack(termIter, termMatches);
-                    currentState = ParserState.NEXT;
-                } catch (NoSuchElementException e) {
-                    return null;
-                }
-            }
+    /**
+     * Return the indexes of the alternatives of the rule which can match at the
+     * index, or null if all of them must be tried.
+     */
+    int[] alternatives(String ruleName, int exprCount, int index)
+    {
+        if (predictiveTables == null) return null;
+
+        int first = tokenClass(index);
+        int second = tokenClass(index + 1);
+        int[] alternatives = predictiveTables.alternatives(ruleName, first, second);
+        if (alternatives != null && alternatives.length < exprCount) {
+            // The skipped alternatives would have failed at the next token, or
+            // at the one after it if they could match the next token.
+            recordFailure(index + predictiveTables.failureOffset(ruleName, first, second));
+        }
+        return alternatives;
+    }
 
-            if (currentState == ParserState.REPEAT) {
-                // Do nothing.
-            } else if (currentState == ParserState.NEXT) {
-                term = termIter.next();
-                termMatches.put(term, new ArrayList<>());
-            } else {
-                throw new RuntimeException("Unexpected parser state");
-            }
+    ASTNode finishRule(String ruleName, RuleMemo ruleMemo, int index, ASTNode node)
+    {
+        if (node != null) {
+            node.type = ruleName;
+            node.position = tokens.position(index);
+            node.lineIndex = tokens.lineIndex();
+            if (compact && collapsible(node)) node.collapse(wrapperChains);
         }
+
+        if (ruleMemo != null) {
+            ruleMemo.nodes[index - ruleMemo.offset] = node;
+            ruleMemo.ends[index - ruleMemo.offset] = node == null ? -1 : tokenIndex + 1;
+        }
+
+        return node;
     }
 
-    static void moveIteratorTo(ListIterator<?> iter, int index)
+    /**
+     * Return whether the node, named after its rule, is a wrapper of its only
+     * child. The nodes of inline rules are merged whole into their parents.
+     */
+    boolean collapsible(ASTNode node)
     {
-        if (iter.nextIndex() <= index + 1) {
-            while (iter.nextIndex() != index + 1) {
-                iter.next();
-            }
-        } else {
-            while (iter.nextIndex() != index + 1) {
-                iter.previous();
-            }
+        if (node.value != null
+            || node.children.size() != 1
+            || node.children.get(0).position != node.position
+            || node.type.equals("PROGRAM")) {
+            return false;
         }
+        Rule rule = definitions.get(node.type);
+        return rule == null || !rule.inline;
     }
 
     /**
-     * Find the last term which matched greedily (i.e. could have matched at least 1
-     * less token)
-     * If found, removes the last match, and positions the token and term
-     * iterators' cursors as they were before the last match.
-     * Otherwise, throw NoSuchElementException.
+     * Collapse the wrappers of the tree, from its leaves.
      */
-    void backtrack(ListIterator<Term> termIter, Map<Term, List<TermMatch>> termMatches)
+    void collapseWrappers(ASTNode root)
     {
-        int initialTermIndex = termIter.nextIndex() - 1;
-        while (true) {
-            Term term;
-            try {
-                term = termIter.previous();
-            } catch (NoSuchElementException e) {
-                moveIteratorTo(termIter, initialTermIndex);
-                throw e;
+        // The nodes are collapsed after their children, in the reverse of the
+        // order they're reached from the root.
+        List<ASTNode> nodes = new ArrayList<>();
+        ArrayDeque<ASTNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            ASTNode node = pending.pop();
+            nodes.add(node);
+            for (ASTNode child : node.children) {
+                pending.push(child);
             }
+        }
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            if (collapsible(nodes.get(i))) nodes.get(i).collapse(wrapperChains);
+        }
+    }
 
-            List<TermMatch> matches = termMatches.get(term);
+    /**
+     * Count a rule entered at the index, and fail if the parse is over one of
+     * its limits.
+     */
+    void step(String ruleName, int index)
+    {
+        if (++steps > nextCheck) checkBudget(ruleName, index);
+    }
+
+    void checkBudget(String ruleName, int index)
+    {
+        long totalSteps = steps;
+        if (sharedSteps != null) {
+            totalSteps = sharedSteps.addAndGet(steps - addedSteps);
+            addedSteps = steps;
+        }
+        if (totalSteps > maxSteps) {
+            throw budgetExceeded("steps", "exceeded its limit of " + maxSteps + " steps",
+                                 ruleName, index);
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw budgetExceeded("time", "ran out of time", ruleName, index);
+        }
+        updateNextCheck();
+    }
+
+    void updateNextCheck()
+    {
+        // The steps of the forks are only known when they're added together,
+        // which is done as often as the deadline is checked.
+        boolean shared = sharedSteps != null && maxSteps != Long.MAX_VALUE;
+        nextCheck = hasDeadline || shared ?
+            Math.min(maxSteps, steps + DEADLINE_CHECK_STEPS) : maxSteps;
+    }
+
+    /**
+     * Count a match given up by a term of the rule, and fail if the parse is
+     * over its limit.
+     */
+    void countBacktrack(String ruleName)
+    {
+        long totalBacktracks = ++backtracks;
+        if (sharedBacktracks != null && maxBacktracks != Long.MAX_VALUE) {
+            totalBacktracks = sharedBacktracks.incrementAndGet();
+        }
+        if (totalBacktracks > maxBacktracks) {
+            throw budgetExceeded("backtracks",
+                                 "exceeded its limit of " + maxBacktracks + " backtracks",
+                                 ruleName,
+                                 tokenIndex);
+        }
+    }
+
+    ParseBudgetException budgetExceeded(String limit, String description, String ruleName, int index)
+    {
+        String found = index < tokens.size() ?
+            "token \"" + tokens.value(index) + "\"" : "end of code";
+        int position = tokens.position(index);
+        return new ParseBudgetException("The parse " + description + " in the rule " + ruleName
+                                        + " at " + found + " at "
+                                        + tokens.lineIndex().describe(position) + ".",
+                                        limit,
+                                        ruleName,
+                                        index,
+                                        position);
+    }
+
+    void recordFailure(int index)
+    {
+        if (index > furthestFailureIndex) furthestFailureIndex = index;
+    }
+
+    /**
+     * Return the lookahead class of the token, or -1 past the end of the code.
+     */
+    int tokenClass(int index)
+    {
+        if (index >= tokenClasses.length) return -1;
+        if (tokenClasses[index] == 0) {
+            tokenClasses[index] = predictiveTables.terminalClass(tokens.value(index)) + 1;
+        }
+        return tokenClasses[index] - 1;
+    }
+
+    /**
+     * Match the terms of the expression in order, backtracking over the number
+     * of matches of the terms with modifiers. The matches are kept in a stack
+     * which is reused by the expressions parsed at the same depth, and the node
+     * is only built when the expression matches.
+     */
+    ASTNode parseExpr(String ruleName, Expr expr)
+    {
+        List<Term> terms = expr.terms;
+        MatchStack matches = enterExpr(terms.size());
+        int termIndex = 0;
+        int backtracks = 0;
+        ASTNode node = null;
 
-            if (termMatchedGreedily(term, matches.size())) {
-                int startOfLastMatch = matches.get(matches.size() - 1).index;
-                moveIteratorTo(tokenIter, startOfLastMatch - 1);
-                matches.remove(matches.size() - 1);
+        boolean parsing = true;
+        while (parsing) {
+            Term term = terms.get(termIndex);
+            boolean termMatched = matchTerm(term, matches, termIndex);
 
-                // Cursor should always be after the current term. Since this method
-                // calls `previous` at least once, wee need to call `next` once to
-                // keep the cursor after the element.
-                termIter.next();
+            switch (getCurrenState(term, termIndex + 1 < terms.size(), termMatched,
+                                   matches.counts[termIndex])) {
+            case REPEAT:
                 break;
-            } else {
-                // All matches are removed because, if an element is backtracked and
-                // can't be matched less times, it's as if it never matched anything.
-                matches.clear();
+            case NEXT:
+                termIndex++;
+                break;
+            case STOP:
+                node = matches.build(tokens);
+                parsing = false;
+                break;
+            case BACKTRACK:
+                backtracks++;
+                termIndex = backtrack(ruleName, terms, termIndex, matches);
+                if (termIndex < 0) {
+                    parsing = false;
+                } else {
+                    termIndex++;
+                }
+                break;
+            }
+        }
+
+        exitExpr(matches);
+        exprBacktracks = backtracks;
+        return node;
+    }
+
+    MatchStack enterExpr(int termCount)
+    {
+        if (exprDepth == matchStacks.length) {
+            matchStacks = Arrays.copyOf(matchStacks, exprDepth * 2);
+        }
+        if (matchStacks[exprDepth] == null) {
+            matchStacks[exprDepth] = new MatchStack(termCount);
+        }
+        MatchStack matches = matchStacks[exprDepth++];
+        matches.clear(termCount);
+        return matches;
+    }
+
+    void exitExpr(MatchStack matches)
+    {
+        matches.clear(0);
+        exprDepth--;
+    }
+
+    /**
+     * Find the last term, from the given one backwards, which matched greedily
+     * (i.e. could have matched at least 1 less token).
+     * If found, removes its last match, moves the token cursor to where it was
+     * before that match, and returns the index of the term.
+     * Otherwise, returns -1.
+     */
+    int backtrack(String ruleName, List<Term> terms, int termIndex, MatchStack matches)
+    {
+        for (int i = termIndex; i >= 0; i--) {
+            if (termMatchedGreedily(terms.get(i), matches.counts[i])) {
+                tokenIndex = matches.pop();
+                countBacktrack(ruleName);
+                return i;
+            }
+
+            // All matches are removed because, if an element is backtracked and
+            // can't be matched less times, it's as if it never matched anything.
+            while (matches.counts[i] > 0) {
+                matches.pop();
             }
         }
+        return -1;
     }
 
     static boolean termMatchedGreedily(Term term, int matches)
@@ -551,94 +1170,62 @@ public class SchemeParser
         return matches > minimumMatchesRequired;
     }
 
-    ParserState getCurrenState(Term term,
-                               ListIterator<Term> termIter,
-                               boolean termMatched,
-                               Map<Term, List<TermMatch>> termMatches)
+    static ParserState getCurrenState(Term term,
+                                      boolean hasNextTerm,
+                                      boolean termMatched,
+                                      int matches)
     {
-        String stateName;
         if (term.modifier == Modifier.PLUS) {
-            stateName =
-                termMatched ? "REPEAT"
-                : termMatches.get(term).size() == 0 ? "BACKTRACK"
-                : termIter.hasNext() ? "NEXT" : "STOP";
+            return termMatched ? ParserState.REPEAT
+                : matches == 0 ? ParserState.BACKTRACK
+                : hasNextTerm ? ParserState.NEXT : ParserState.STOP;
         } else if (term.modifier == Modifier.ASTERISK) {
-            stateName =
-                termMatched ? "REPEAT"
-                : termIter.hasNext() ? "NEXT" : "STOP";
+            return termMatched ? ParserState.REPEAT
+                : hasNextTerm ? ParserState.NEXT : ParserState.STOP;
         } else {
-            stateName =
-                !termMatched ? "BACKTRACK"
-                : termIter.hasNext() ? "NEXT" : "STOP";
-        }
-        return ParserState.valueOf(stateName);
-    }
-
-    static ASTNode buildASTFromTermMatches(Map<Term, List<TermMatch>> termMatches)
-    {
-        ASTNode node = new ASTNode();
-        for (Map.Entry<Term, List<TermMatch>> entry : termMatches.entrySet()) {
-            TermType termType = entry.getKey().type;
-            for (TermMatch match : entry.getValue()) {
-                if (match.value == null) continue;
-
-                if (termType == TermType.TERMINAL
-                    && match.value instanceof Token token
-                    && token.type == TokenType.IDENTIFIER) {
-                    node.value = token.value;
-                } else if (termType == TermType.PATTERN
-                           && match.value instanceof Token token) {
-                    node.value = token.value;
-                } else if (termType == TermType.NONTERMINAL
-                           && match.value instanceof ASTNode child) {
-                    node.addChildren(child);
-                }
-            }
+            return !termMatched ? ParserState.BACKTRACK
+                : hasNextTerm ? ParserState.NEXT : ParserState.STOP;
         }
-        return node;
     }
 
-    TermMatch matchTerm(Term term)
+    /**
+     * Match the term at the cursor and push the match, or return false if it
+     * doesn't match.
+     */
+    boolean matchTerm(Term term, MatchStack matches, int termIndex)
     {
-        Token token;
-        Object match = null;
-        Integer matchStart = tokenIter.nextIndex();
-        boolean termMatched = false;
-
-        switch (term.type) {
-        case TERMINAL:
-            if (term.value.equals("")) {
-                termMatched = true;
-                break;
-            }
-
-            if (!tokenIter.hasNext()) break;
-
-            token = tokenIter.next();
-            termMatched = term.value.equals(token.value);
-            if (termMatched) match = token;
-            break;
-        case PATTERN:
-            if (!tokenIter.hasNext()) break;
-
-            token = tokenIter.next();
-            termMatched = patternMatches(term.value, token.value);
-            if (termMatched) match = token;
-            break;
-        case NONTERMINAL:
-            match = parseRule(term.value);
-            termMatched = match != null;
-            break;
-        }
+        if (term.type != TermType.NONTERMINAL) return matchToken(term, matches, termIndex);
 
-        return termMatched ? new TermMatch(matchStart, match) : null;
+        int matchStart = tokenIndex;
+        ASTNode child = parseRule(term.value);
+        if (child == null) return false;
+        matches.push(termIndex, MatchStack.nodeKind(term), matchStart, child);
+        return true;
     }
 
-    static Boolean patternMatches(String pattern, String string)
+    boolean matchToken(Term term, MatchStack matches, int termIndex)
     {
-        return Pattern
-            .compile("^" + pattern)
-            .matcher(string)
-            .find();
+        int index = tokenIndex;
+        int kind;
+        boolean termMatched;
+        if (term.type == TermType.TERMINAL) {
+            kind = term.value.isEmpty() ? MatchStack.EMPTY : MatchStack.TERMINAL;
+            termMatched = term.value.isEmpty()
+                || (index < tokens.size() && tokens.valueEquals(index, term.value));
+        } else {
+            kind = MatchStack.PATTERN;
+            termMatched = index < tokens.size()
+                && (term.tokenType != null ?
+                    tokens.type(index) == term.tokenType
+                    : term.pattern.matcher(tokens.value(index)).find());
+        }
+
+        if (!termMatched) {
+            recordFailure(index);
+            return false;
+        }
+        matches.push(termIndex, kind, index, null);
+        if (kind != MatchStack.EMPTY) tokenIndex++;
+        return true;
     }
 }
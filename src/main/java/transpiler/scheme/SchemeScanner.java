@@ -1,12 +1,19 @@
 package transpiler.scheme;
 
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import transpiler.ASTNode;
 import transpiler.IntermediateRepresentation;
+import transpiler.LineIndex;
 
 class GroupPattern
 {
@@ -44,6 +51,7 @@ public class SchemeScanner
     static GroupPattern COMMENT = or(and(";", raw(".*?"), LINE_ENDING),
                                      // and("#;", INTERTOKEN_SPACE, DATUM)
                                      NESTED_COMMENT);
+    static String[] DIRECTIVES = { "fold-case", "no-fold-case" };
     static GroupPattern DIRECTIVE = or("#!fold-case", "#!no-fold-case");
     static GroupPattern ATMOSPHERE = or(WHITESPACE, COMMENT, DIRECTIVE);
     static RawPattern INTERTOKEN_SPACE = raw(ATMOSPHERE.regex + "*");
@@ -86,23 +94,26 @@ public class SchemeScanner
         return raw(DIGIT(n).regex + "+");
     }
 
-    static GroupPattern DECIMAL_10 = or(and(UINTEGER(10), SUFFIX),
-                                        and(".", raw(DIGIT(10).regex + "+"), SUFFIX),
-                                        and(raw(DIGIT(10).regex + "+"),
+    // The alternatives which can match more of the same code come first, since
+    // a regex takes the first alternative that matches, and the tokens are the
+    // longest lexemes, as in the DFA scan mode.
+    static GroupPattern DECIMAL_10 = or(and(raw(DIGIT(10).regex + "+"),
                                             ".",
                                             raw(DIGIT(10).regex + "*"),
-                                            SUFFIX));
+                                            SUFFIX),
+                                        and(".", raw(DIGIT(10).regex + "+"), SUFFIX),
+                                        and(UINTEGER(10), SUFFIX));
 
     static GroupPattern UREAL(int n)
     {
         GroupPattern pattern;
         if (n == 10) {
-            pattern = or(UINTEGER(n),
-                         and(UINTEGER(n), "/", UINTEGER(n)),
-                         DECIMAL_10);
+            pattern = or(and(UINTEGER(n), "/", UINTEGER(n)),
+                         DECIMAL_10,
+                         UINTEGER(n));
         } else {
-            pattern = or(UINTEGER(n),
-                         and(UINTEGER(n), "/", UINTEGER(n)));
+            pattern = or(and(UINTEGER(n), "/", UINTEGER(n)),
+                         UINTEGER(n));
         }
         return pattern;
     }
@@ -114,16 +125,16 @@ public class SchemeScanner
 
     static GroupPattern COMPLEX(int n)
     {
-        return or(REAL(n),
-                  and(REAL(n), "@", REAL(n)),
+        return or(and(REAL(n), "@", REAL(n)),
                   and(REAL(n), "+", UREAL(n), "i"),
                   and(REAL(n), "-", UREAL(n), "i"),
+                  and(REAL(n), INFNAN, "i"),
                   and(REAL(n), "+", "i"),
                   and(REAL(n), "-", "i"),
-                  and(REAL(n), INFNAN, "i"),
                   and("+", UREAL(n), "i"),
                   and("-", UREAL(n), "i"),
                   and(INFNAN, "i"),
+                  REAL(n),
                   and("+", "i"),
                   and("-", "i"));
     }
@@ -135,7 +146,7 @@ public class SchemeScanner
 
     static GroupPattern NUMBER = or(NUMBER_(2), NUMBER_(8), NUMBER_(10), NUMBER_(16));
 
-    static GroupPattern BOOLEAN = or("#t", "#f", "#true", "#false");
+    static GroupPattern BOOLEAN = or("#true", "#false", "#t", "#f");
 
     static RawPattern LETTER = raw("[a-zA-Z]");
     static GroupPattern SPECIAL_INITIAL = or("!", "$", "%", "&", "*", "/", ":", "<", "=", ">", "?", "^", "_", "~");
@@ -161,9 +172,9 @@ public class SchemeScanner
                                               PECULIAR_IDENTIFIER);
 
     static GroupPattern CHARACTER_NAME = or("alarm", "backspace", "delete", "escape", "newline", "null", "return", "space", "tab");
-    static GroupPattern CHARACTER = or(raw("#\\\\."),
-                                       and("#\\\\", CHARACTER_NAME),
-                                             and("#\\\\x", HEX_SCALAR_VALUE));
+    static GroupPattern CHARACTER = or(and("#\\\\", CHARACTER_NAME),
+                                       and("#\\\\x", HEX_SCALAR_VALUE),
+                                       raw("#\\\\."));
 
     static GroupPattern STRING_ELEMENT = or(raw("[^\"\\\\]"),
                                             MNEMONIC_ESCAPE,
@@ -186,7 +197,7 @@ public class SchemeScanner
                TokenType.NUMBER, NUMBER.regex,
                TokenType.CHARACTER, CHARACTER.regex,
                TokenType.STRING, STRING.regex,
-               TokenType.DELIMITER, or("(", ")", "#(", "#u8(", "'", "`", ",", ",@", ".").regex
+               TokenType.DELIMITER, or("(", ")", "#(", "#u8(", "'", "`", ",@", ",", ".").regex
             );
 
     // IDENTIFIER must be last because, otherwise, some tokens might be incorrectly
@@ -244,52 +255,425 @@ public class SchemeScanner
         return new GroupPattern("(" + String.join("|", getRegexStr(regexes)) + ")");
     }
 
+    // The patterns are compiled once and then matched in place, with
+    // `Matcher.region`, so that scanning never copies the rest of the code.
+    // Intertoken space isn't matched with INTERTOKEN_SPACE but skipped by hand.
+    static Pattern[] ORDERED_TOKEN_PATTERNS = compileTokenPatterns();
+
+    CharSequence code;
+    // Scanning stops at codeEnd, which comes before the end of `code` when only
+    // part of the input has been read.
+    int codeEnd;
+    ScanMode mode;
+    Matcher[] tokenMatchers;
+    TokenAutomaton tokenAutomaton;
+
+    // Set by the last match: the type of the token, and whether more code after
+    // codeEnd could have changed the result.
+    TokenType matchedType;
+    boolean hitEnd;
+    // Set by `scan`: whether any of its matches could have been changed by more
+    // code after codeEnd.
+    boolean scanHitEnd;
+    // Set by `rescan`: the number of tokens which were scanned again.
+    int rescannedTokenCount;
+
+    public SchemeScanner(CharSequence code)
+    {
+        this(code, ScanMode.REGEX);
+    }
+
+    public SchemeScanner(CharSequence code, ScanMode mode)
+    {
+        this.code = code;
+        this.codeEnd = code.length();
+        this.mode = mode;
+        this.tokenAutomaton = mode == ScanMode.DFA ? TokenAutomaton.DEFAULT : null;
+        this.tokenMatchers = new Matcher[ORDERED_TOKEN_PATTERNS.length];
+        for (int i = 0; i < ORDERED_TOKEN_PATTERNS.length; i++) {
+            this.tokenMatchers[i] = ORDERED_TOKEN_PATTERNS[i].matcher(code);
+        }
+    }
+
+    static Pattern[] compileTokenPatterns()
+    {
+        Pattern[] patterns = new Pattern[ORDERED_TOKEN_TYPES.length];
+        for (int i = 0; i < ORDERED_TOKEN_TYPES.length; i++) {
+            patterns[i] = Pattern.compile(TOKEN_DEFINITIONS.get(ORDERED_TOKEN_TYPES[i]));
+        }
+        return patterns;
+    }
+
+    void reset(CharSequence code, int codeEnd)
+    {
+        this.code = code;
+        this.codeEnd = codeEnd;
+        for (Matcher matcher : tokenMatchers) {
+            matcher.reset(code);
+        }
+    }
+
     public static List<Token> tokenize(String code)
     {
-        int curPos = 0;
-        int codeLength = code.length();
-        List<Token> tokens = new ArrayList<>();
+        return new SchemeScanner(code).tokenize();
+    }
+
+    public static List<Token> tokenize(String code, ScanMode mode)
+    {
+        return new SchemeScanner(code, mode).tokenize();
+    }
+
+    /**
+     * Tokenize the code read from the reader as it's consumed. Only the text of
+     * the token being scanned is buffered.
+     */
+    public static Iterator<Token> tokenize(Reader reader, ScanMode mode)
+    {
+        return new TokenStream(reader, mode);
+    }
+
+    public static Iterator<Token> tokenize(ReadableByteChannel channel,
+                                           Charset charset,
+                                           ScanMode mode)
+    {
+        return tokenize(Channels.newReader(channel, charset), mode);
+    }
+
+    public List<Token> tokenize()
+    {
+        return scan().asList();
+    }
+
+    public static TokenBuffer scan(CharSequence code, ScanMode mode)
+    {
+        return new SchemeScanner(code, mode).scan();
+    }
+
+    /**
+     * Scan the code while it's read, so it's never held in memory as a whole.
+     * Only the values of the tokens are kept, with their positions in the
+     * code, so the locations are in its lines.
+     */
+    public static TokenBuffer scan(Reader reader, ScanMode mode)
+    {
+        TokenStream tokens = new TokenStream(reader, mode);
+        return TokenBuffer.of(tokens, tokens.lineIndex());
+    }
+
+    /**
+     * Scan the code in chunks, split between top-level forms, which are tokenized
+     * in parallel on the pool. The tokens are the same as `scan`'s.
+     */
+    public static TokenBuffer scanParallel(CharSequence code, ScanMode mode, ForkJoinPool pool)
+    {
+        return ParallelScan.scan(code, mode, pool);
+    }
+
+    public static TokenBuffer scanParallel(CharSequence code, ScanMode mode)
+    {
+        return scanParallel(code, mode, ForkJoinPool.commonPool());
+    }
+
+    public TokenBuffer scan()
+    {
+        return scan(0);
+    }
+
+    /**
+     * Scan the code from startPos to codeEnd, which must be the start of a token
+     * or of intertoken space.
+     */
+    TokenBuffer scan(int startPos)
+    {
+        int curPos = startPos;
+        // Scheme code rarely has fewer than 4 characters per token, so the buffer
+        // seldom has to grow.
+        TokenBuffer tokens = new TokenBuffer(code, Math.max((codeEnd - startPos) / 4,
+                                                            TokenBuffer.INITIAL_CAPACITY));
+
+        scanHitEnd = false;
+        while (curPos < codeEnd) {
+            curPos = skipIntertokenSpace(curPos);
+            scanHitEnd |= hitEnd;
+            int tokenEnd = matchTokenEnd(curPos);
+            scanHitEnd |= hitEnd;
+            if (tokenEnd < 0) {
+                break;
+            }
+            tokens.add(matchedType, curPos, tokenEnd - curPos);
+            curPos = tokenEnd;
+        }
+
+        if (curPos != codeEnd) {
+            throw invalidToken(curPos);
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Return the tokens of the code after an edit which removed `removedLength`
+     * characters at `offset`, and inserted `insertedText` there. Only the tokens
+     * around the edit are scanned again: the scan stops as soon as it reaches the
+     * end of an old token after the edit.
+     */
+    public static TokenBuffer rescan(TokenBuffer oldTokens,
+                                     int offset,
+                                     int removedLength,
+                                     String insertedText,
+                                     ScanMode mode)
+    {
+        CharSequence oldCode = oldTokens.source();
+        if (offset < 0 || removedLength < 0 || offset + removedLength > oldCode.length()) {
+            throw new RuntimeException("The edit (" + offset + ", " + removedLength
+                                       + ") is outside of the code.");
+        }
+
+        String code = new StringBuilder(oldCode.length() - removedLength + insertedText.length())
+            .append(oldCode, 0, offset)
+            .append(insertedText)
+            .append(oldCode, offset + removedLength, oldCode.length())
+            .toString();
+        return new SchemeScanner(code, mode).rescan(oldTokens, offset, removedLength,
+                                                    insertedText.length());
+    }
 
-        while (curPos < codeLength) {
-            curPos = skipIntertokenSpace(code, curPos);
-            Token token = matchToken(code, curPos);
-            if (token.value == "") {
+    TokenBuffer rescan(TokenBuffer oldTokens, int offset, int removedLength, int insertedLength)
+    {
+        // The old tokens before the edit are kept as long as matching them never
+        // looked at the edited code.
+        SchemeScanner oldScanner = new SchemeScanner(oldTokens.source(), mode);
+        oldScanner.reset(oldTokens.source(), offset);
+        int keptTokens = oldTokens.firstTokenEndingFrom(offset);
+        while (keptTokens > 0) {
+            int last = keptTokens - 1;
+            if (oldScanner.matchTokenEnd(oldTokens.start(last)) == oldTokens.end(last)
+                && !oldScanner.hitEnd) {
                 break;
             }
-            tokens.add(token);
-            curPos += token.value.length();
+            keptTokens--;
         }
 
-        if (curPos != codeLength) {
-            throw new RuntimeException("No valid token was found at position " + curPos + ".");
+        TokenBuffer tokens = new TokenBuffer(code, oldTokens.size() + TokenBuffer.INITIAL_CAPACITY);
+        tokens.addAll(oldTokens, 0, keptTokens, 0);
+
+        int shift = insertedLength - removedLength;
+        int editEnd = offset + insertedLength;
+        int curPos = keptTokens == 0 ? 0 : oldTokens.end(keptTokens - 1);
+        rescannedTokenCount = 0;
+        while (curPos < codeEnd) {
+            // After the edit, once the scan is at the end of an old token, the
+            // rest of the old tokens are the same.
+            if (curPos >= editEnd) {
+                int oldIndex = oldTokens.firstTokenEndingFrom(curPos - shift);
+                if (oldIndex < oldTokens.size() && oldTokens.end(oldIndex) == curPos - shift) {
+                    tokens.addAll(oldTokens, oldIndex + 1, oldTokens.size(), shift);
+                    return tokens;
+                }
+            }
+
+            curPos = skipIntertokenSpace(curPos);
+            int tokenEnd = matchTokenEnd(curPos);
+            if (tokenEnd < 0) {
+                break;
+            }
+            tokens.add(matchedType, curPos, tokenEnd - curPos);
+            rescannedTokenCount++;
+            curPos = tokenEnd;
+        }
+
+        if (curPos != codeEnd) {
+            throw invalidToken(curPos);
         }
 
         return tokens;
     }
 
+    RuntimeException invalidToken(int pos)
+    {
+        return new RuntimeException("No valid token was found at "
+                                    + new LineIndex(code).describe(pos)
+                                    + " (position " + pos + ").");
+    }
+
     static public int skipIntertokenSpace(String code, int startPos)
     {
-        Matcher matcher = Pattern.compile("^" + INTERTOKEN_SPACE.regex)
-            .matcher(code.substring(startPos));
-        return startPos + (matcher.find() ? matcher.end() : 0);
+        return new SchemeScanner(code).skipIntertokenSpace(startPos);
     }
 
     static public Token matchToken(String code, int startPos)
     {
-        for (TokenType tokenType : ORDERED_TOKEN_TYPES) {
-            String definition = TOKEN_DEFINITIONS.get(tokenType);
-            Matcher matcher = Pattern.compile("^" + definition)
-                .matcher(code.substring(startPos));
-            if (!matcher.find()) continue;
-            return new Token(tokenType, matcher.group());
+        SchemeScanner scanner = new SchemeScanner(code);
+        int tokenEnd = scanner.matchTokenEnd(startPos);
+        return tokenEnd < 0 ?
+            new Token(null, "") : new Token(scanner.matchedType, code.substring(startPos, tokenEnd));
+    }
+
+    /**
+     * Return the position after the intertoken space starting at startPos. It's
+     * skipped by hand, in a single pass, because nested comments need a depth
+     * counter and datum comments need the tokens of the datum.
+     */
+    int skipIntertokenSpace(int startPos)
+    {
+        hitEnd = false;
+        return skipAtmosphere(startPos);
+    }
+
+    int skipAtmosphere(int pos)
+    {
+        while (true) {
+            switch (peek(pos)) {
+            case ' ', '\t', '\n', '\r' -> pos++;
+            case ';' -> pos = skipLineComment(pos + 1);
+            case '#' -> {
+                int end = switch (peek(pos + 1)) {
+                    case '|' -> skipNestedComment(pos + 2);
+                    case ';' -> skipDatum(pos + 2);
+                    case '!' -> skipDirective(pos + 2);
+                    default -> -1;
+                };
+                if (end < 0) return pos;
+                pos = end;
+            }
+            default -> {
+                return pos;
+            }
+            }
         }
+    }
 
-        return new Token(null, "");
+    /**
+     * Return the character at pos, or -1 if it's past codeEnd, in which case
+     * more code could change the result.
+     */
+    int peek(int pos)
+    {
+        if (pos < codeEnd) return code.charAt(pos);
+        hitEnd = true;
+        return -1;
+    }
+
+    int skipLineComment(int pos)
+    {
+        while (true) {
+            int c = peek(pos);
+            if (c < 0 || c == '\n' || c == '\r') return pos;
+            pos++;
+        }
+    }
+
+    /**
+     * Return the end of the nested comment whose text starts at pos, or -1 if
+     * it isn't closed.
+     */
+    int skipNestedComment(int pos)
+    {
+        int depth = 1;
+        while (depth > 0) {
+            int c = peek(pos);
+            if (c < 0) return -1;
+
+            if (c == '|' && peek(pos + 1) == '#') {
+                depth--;
+                pos += 2;
+            } else if (c == '#' && peek(pos + 1) == '|') {
+                depth++;
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Return the end of the datum starting at pos, or -1 if there's no complete
+     * datum. Lists are skipped by counting their parentheses.
+     */
+    int skipDatum(int pos)
+    {
+        int depth = 0;
+        while (true) {
+            pos = skipAtmosphere(pos);
+            boolean atmosphereHitEnd = hitEnd;
+            int tokenEnd = matchTokenEnd(pos);
+            hitEnd |= atmosphereHitEnd;
+            if (tokenEnd < 0) return -1;
+
+            if (matchedType == TokenType.DELIMITER) {
+                switch (code.charAt(tokenEnd - 1)) {
+                case '(' -> depth++;
+                case ')' -> {
+                    if (depth == 0) return -1;
+                    depth--;
+                }
+                case '.' -> {
+                    if (depth == 0) return -1;
+                }
+                default -> {
+                    // A quote applies to the datum after it.
+                    pos = tokenEnd;
+                    continue;
+                }
+                }
+            }
+
+            pos = tokenEnd;
+            if (depth == 0) return pos;
+        }
+    }
+
+    int skipDirective(int pos)
+    {
+        for (String directive : DIRECTIVES) {
+            int i = 0;
+            while (i < directive.length() && peek(pos + i) == directive.charAt(i)) {
+                i++;
+            }
+            if (i == directive.length()) return pos + i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the end of the token starting at startPos, or -1 if there's none.
+     */
+    int matchTokenEnd(int startPos)
+    {
+        if (mode == ScanMode.DFA) {
+            long match = tokenAutomaton.match(code, startPos, codeEnd);
+            int tokenEnd = TokenAutomaton.matchEnd(match);
+            hitEnd = TokenAutomaton.matchHitEnd(match);
+            matchedType = tokenEnd < 0 ?
+                null : ORDERED_TOKEN_TYPES[TokenAutomaton.matchPriority(match)];
+            return tokenEnd;
+        }
+
+        hitEnd = false;
+        for (int i = 0; i < ORDERED_TOKEN_TYPES.length; i++) {
+            Matcher matcher = tokenMatchers[i].region(startPos, codeEnd);
+            boolean matched = matcher.lookingAt();
+            hitEnd |= matcher.hitEnd();
+            if (!matched) continue;
+
+            // An empty match stops the scan like no match does.
+            matchedType = ORDERED_TOKEN_TYPES[i];
+            return matcher.end() == startPos ? -1 : matcher.end();
+        }
+
+        matchedType = null;
+        return -1;
     }
 
     public static ASTNode generateAST(String code)
     {
-        SchemeParser parser = new SchemeParser(tokenize(code));
+        return generateAST(code, ScanMode.REGEX);
+    }
+
+    public static ASTNode generateAST(String code, ScanMode mode)
+    {
+        SchemeParser parser = new SchemeParser(scan(code, mode));
         return parser.parse();
     }
 }
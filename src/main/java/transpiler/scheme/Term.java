@@ -0,0 +1,56 @@
+package transpiler.scheme;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+class Term
+{
+    String value;
+    TermType type;
+    Modifier modifier;
+    // A pattern is resolved when the term is built: it matches the tokens of
+    // a type if it's the pattern the scanner uses for them, and otherwise it's
+    // compiled once.
+    TokenType tokenType;
+    Pattern pattern;
+    // Whether the node of the rule is merged into the node of the expression,
+    // as the subrules of `LeftFactoring` are, instead of being its child.
+    boolean inline;
+
+    public Term()
+    {
+        this.value = null;
+        this.type = null;
+        this.modifier = null;
+        this.tokenType = null;
+        this.pattern = null;
+        this.inline = false;
+    }
+
+    public Term(String value, TermType type)
+    {
+        this(value, type, null);
+    }
+
+    public Term(String value, TermType type, Modifier modifier)
+    {
+        this.value = value;
+        this.type = type;
+        this.modifier = modifier;
+        this.tokenType = null;
+        this.pattern = null;
+        this.inline = false;
+        if (type == TermType.PATTERN) resolvePattern();
+    }
+
+    void resolvePattern()
+    {
+        for (Map.Entry<TokenType, String> entry : SchemeScanner.TOKEN_DEFINITIONS.entrySet()) {
+            if (entry.getValue().equals(value)) {
+                tokenType = entry.getKey();
+                return;
+            }
+        }
+        pattern = Pattern.compile("^" + value);
+    }
+}
@@ -0,0 +1,3 @@
+package transpiler.scheme;
+
+enum TermType {TERMINAL, NONTERMINAL, PATTERN}
@@ -4,11 +4,19 @@ public class Token
 {
     public String value;
     public TokenType type;
+    // Offset of the token in its source, or -1 if it isn't known.
+    public int position;
 
     public Token(TokenType type, String value)
+    {
+        this(type, value, -1);
+    }
+
+    public Token(TokenType type, String value, int position)
     {
         this.type = type;
         this.value = value;
+        this.position = position;
     }
 
     @Override
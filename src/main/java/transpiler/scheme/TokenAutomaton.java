@@ -0,0 +1,510 @@
+package transpiler.scheme;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Thompson NFA built from the regexes generated by the scanner's combinators.
+ * Only the constructs used by the token definitions are supported: `\Q...\E`
+ * literals, escaped characters, character classes, ".", groups, alternations and
+ * the greedy "*", "+" and "?" quantifiers.
+ */
+class RegexNfa
+{
+    static int MAX_CHAR = Character.MAX_VALUE;
+
+    // "." doesn't match line terminators by default in java.util.regex.
+    static int[] ANY_CHARACTER = complement(ranges('\n', '\n',
+                                                   '\r', '\r',
+                                                   0x0085, 0x0085,
+                                                   0x2028, 0x2029));
+
+    List<List<Integer>> epsilonTransitions;
+    // Each transition is a (from, to, target) triple over the characters.
+    List<List<int[]>> rangeTransitions;
+    Map<Integer, Integer> acceptingStates;
+
+    String regex;
+    int pos;
+
+    public RegexNfa()
+    {
+        this.epsilonTransitions = new ArrayList<>();
+        this.rangeTransitions = new ArrayList<>();
+        this.acceptingStates = new HashMap<>();
+    }
+
+    int size()
+    {
+        return epsilonTransitions.size();
+    }
+
+    int newState()
+    {
+        epsilonTransitions.add(new ArrayList<>());
+        rangeTransitions.add(new ArrayList<>());
+        return size() - 1;
+    }
+
+    void link(int from, int to)
+    {
+        epsilonTransitions.get(from).add(to);
+    }
+
+    void accept(int state, int priority)
+    {
+        acceptingStates.put(state, priority);
+    }
+
+    /**
+     * Add the regex to the automaton and return its (start, end) states.
+     */
+    int[] add(String regex)
+    {
+        this.regex = regex;
+        this.pos = 0;
+        int[] fragment = parseAlternation();
+        if (pos != regex.length()) {
+            throw unsupported("unbalanced \")\"");
+        }
+        return fragment;
+    }
+
+    RuntimeException unsupported(String construct)
+    {
+        return new RuntimeException("Unsupported regex construct (" + construct + ") at "
+                                    + pos + " in: " + regex);
+    }
+
+    boolean atEnd()
+    {
+        return pos >= regex.length();
+    }
+
+    boolean peek(char c)
+    {
+        return !atEnd() && regex.charAt(pos) == c;
+    }
+
+    boolean eat(char c)
+    {
+        if (!peek(c)) return false;
+        pos++;
+        return true;
+    }
+
+    int[] parseAlternation()
+    {
+        int[] first = parseSequence();
+        if (!peek('|')) return first;
+
+        int start = newState();
+        int end = newState();
+        link(start, first[0]);
+        link(first[1], end);
+        while (eat('|')) {
+            int[] alternative = parseSequence();
+            link(start, alternative[0]);
+            link(alternative[1], end);
+        }
+        return new int[] {start, end};
+    }
+
+    int[] parseSequence()
+    {
+        int start = newState();
+        int end = start;
+        while (!atEnd() && !peek('|') && !peek(')')) {
+            int[] fragment = parseQuantified();
+            link(end, fragment[0]);
+            end = fragment[1];
+        }
+        return new int[] {start, end};
+    }
+
+    int[] parseQuantified()
+    {
+        int[] fragment = parseAtom();
+        while (!atEnd()) {
+            char quantifier = regex.charAt(pos);
+            if (quantifier == '{') throw unsupported("bounded quantifier");
+            if (quantifier != '*' && quantifier != '+' && quantifier != '?') break;
+
+            pos++;
+            if (peek('?') || peek('+')) throw unsupported("lazy or possessive quantifier");
+
+            int start = newState();
+            int end = newState();
+            link(start, fragment[0]);
+            link(fragment[1], end);
+            if (quantifier != '+') link(start, end);
+            if (quantifier != '?') link(fragment[1], fragment[0]);
+            fragment = new int[] {start, end};
+        }
+        return fragment;
+    }
+
+    int[] parseAtom()
+    {
+        char c = regex.charAt(pos);
+        switch (c) {
+        case '(':
+            pos++;
+            if (regex.startsWith("?:", pos)) {
+                pos += 2;
+            } else if (peek('?')) {
+                throw unsupported("lookaround or inline flag");
+            }
+            int[] group = parseAlternation();
+            if (!eat(')')) throw unsupported("unclosed group");
+            return group;
+        case '[':
+            return charactersFragment(parseCharacterClass());
+        case '.':
+            pos++;
+            return charactersFragment(ANY_CHARACTER);
+        case '\\':
+            if (regex.startsWith("Q", pos + 1)) {
+                return parseQuotation();
+            }
+            pos++;
+            return charactersFragment(parseEscape());
+        case '*': case '+': case '?': case '{': case '^': case '$':
+            throw unsupported("\"" + c + "\"");
+        default:
+            pos++;
+            return charactersFragment(ranges(c, c));
+        }
+    }
+
+    int[] parseQuotation()
+    {
+        int literalStart = pos + 2;
+        int literalEnd = regex.indexOf("\\E", literalStart);
+        if (literalEnd < 0) literalEnd = regex.length();
+        pos = Math.min(literalEnd + 2, regex.length());
+
+        int start = newState();
+        int end = start;
+        for (int i = literalStart; i < literalEnd; i++) {
+            int next = newState();
+            rangeTransitions.get(end).add(new int[] {regex.charAt(i), regex.charAt(i), next});
+            end = next;
+        }
+        return new int[] {start, end};
+    }
+
+    int[] parseEscape()
+    {
+        if (atEnd()) throw unsupported("trailing \"\\\"");
+        char c = regex.charAt(pos++);
+        char escaped = switch (c) {
+        case 't' -> '\t';
+        case 'n' -> '\n';
+        case 'r' -> '\r';
+        case 'f' -> '\f';
+        default -> {
+            if (Character.isLetterOrDigit(c)) throw unsupported("\\" + c);
+            yield c;
+        }
+        };
+        return ranges(escaped, escaped);
+    }
+
+    int[] parseCharacterClass()
+    {
+        pos++;
+        boolean negated = eat('^');
+        List<Integer> bounds = new ArrayList<>();
+        while (!eat(']')) {
+            if (atEnd()) throw unsupported("unclosed character class");
+            if (peek('[') || regex.startsWith("&&", pos)) throw unsupported("nested character class");
+
+            char from = parseClassCharacter();
+            char to = from;
+            if (peek('-') && !regex.startsWith("-]", pos)) {
+                pos++;
+                to = parseClassCharacter();
+            }
+            bounds.add((int) from);
+            bounds.add((int) to);
+        }
+
+        int[] characters = normalize(bounds.stream().mapToInt(Integer::intValue).toArray());
+        return negated ? complement(characters) : characters;
+    }
+
+    char parseClassCharacter()
+    {
+        if (!eat('\\')) return regex.charAt(pos++);
+        return (char) parseEscape()[0];
+    }
+
+    int[] charactersFragment(int[] characters)
+    {
+        int start = newState();
+        int end = newState();
+        for (int i = 0; i < characters.length; i += 2) {
+            rangeTransitions.get(start).add(new int[] {characters[i], characters[i + 1], end});
+        }
+        return new int[] {start, end};
+    }
+
+    static int[] ranges(int... bounds)
+    {
+        return normalize(bounds);
+    }
+
+    /**
+     * Sort and merge the given (from, to) pairs.
+     */
+    static int[] normalize(int[] bounds)
+    {
+        int[][] pairs = new int[bounds.length / 2][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new int[] {bounds[2 * i], bounds[2 * i + 1]};
+        }
+        Arrays.sort(pairs, (a, b) -> Integer.compare(a[0], b[0]));
+
+        List<Integer> merged = new ArrayList<>();
+        for (int[] pair : pairs) {
+            int last = merged.size() - 1;
+            if (last > 0 && pair[0] <= merged.get(last) + 1) {
+                merged.set(last, Math.max(merged.get(last), pair[1]));
+            } else {
+                merged.add(pair[0]);
+                merged.add(pair[1]);
+            }
+        }
+        return merged.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static int[] complement(int[] characters)
+    {
+        List<Integer> bounds = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < characters.length; i += 2) {
+            if (characters[i] > next) {
+                bounds.add(next);
+                bounds.add(characters[i] - 1);
+            }
+            next = characters[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            bounds.add(next);
+            bounds.add(MAX_CHAR);
+        }
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
+
+/**
+ * Deterministic automaton recognizing every token definition at once. The input
+ * characters are first mapped to equivalence classes, so the transitions fit in a
+ * single (state, class) table.
+ *
+ * A token is the longest lexeme of the first type in the given priority order
+ * which matches at all, so the scan never has to go back on the input.
+ */
+class TokenAutomaton
+{
+    static int DEAD_STATE = -1;
+
+    // DEAD_STATE must be initialized before, since it's used by `compile`.
+    static TokenAutomaton DEFAULT = compile(SchemeScanner.ORDERED_TOKEN_TYPES,
+                                            SchemeScanner.TOKEN_DEFINITIONS);
+
+    TokenType[] types;
+    char[] characterClasses;
+    int classCount;
+    int[] transitions;
+    // Bit i is set when the state accepts a lexeme of types[i].
+    int[] acceptedTypes;
+
+    TokenAutomaton(TokenType[] types,
+                   char[] characterClasses,
+                   int classCount,
+                   int[] transitions,
+                   int[] acceptedTypes)
+    {
+        this.types = types;
+        this.characterClasses = characterClasses;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.acceptedTypes = acceptedTypes;
+    }
+
+    int stateCount()
+    {
+        return acceptedTypes.length;
+    }
+
+    /**
+     * Return the end of the token matched at startPos (-1 if there's none), the
+     * priority of its type, and whether the automaton was still running at endPos,
+     * packed in a long. They're read with `matchEnd`, `matchPriority` and
+     * `matchHitEnd`.
+     */
+    long match(CharSequence text, int startPos, int endPos)
+    {
+        int state = 0;
+        int matchedPriority = types.length;
+        int matchEnd = -1;
+        int pos;
+
+        for (pos = startPos; pos < endPos; pos++) {
+            state = transitions[state * classCount + characterClasses[text.charAt(pos)]];
+            if (state == DEAD_STATE) break;
+
+            int accepted = acceptedTypes[state];
+            if (accepted == 0) continue;
+
+            int priority = Integer.numberOfTrailingZeros(accepted);
+            if (priority <= matchedPriority) {
+                matchedPriority = priority;
+                matchEnd = pos + 1;
+            }
+        }
+
+        // The automaton isn't running anymore if it reached endPos in a state
+        // without transitions.
+        long hitEnd = pos == endPos && hasTransitions(state) ? 1 : 0;
+        return (hitEnd << 40) | ((long) matchedPriority << 32) | (matchEnd & 0xFFFFFFFFL);
+    }
+
+    boolean hasTransitions(int state)
+    {
+        for (int c = 0; c < classCount; c++) {
+            if (transitions[state * classCount + c] != DEAD_STATE) return true;
+        }
+        return false;
+    }
+
+    static int matchEnd(long match)
+    {
+        return (int) match;
+    }
+
+    static int matchPriority(long match)
+    {
+        return (int) (match >>> 32) & 0xFF;
+    }
+
+    static boolean matchHitEnd(long match)
+    {
+        return (match >>> 40) != 0;
+    }
+
+    static TokenAutomaton compile(TokenType[] types, Map<TokenType, String> definitions)
+    {
+        RegexNfa nfa = new RegexNfa();
+        int start = nfa.newState();
+        for (int i = 0; i < types.length; i++) {
+            int[] fragment = nfa.add(definitions.get(types[i]));
+            nfa.link(start, fragment[0]);
+            nfa.accept(fragment[1], i);
+        }
+
+        // Split the characters into classes which no transition tells apart.
+        TreeSet<Integer> classStarts = new TreeSet<>();
+        classStarts.add(0);
+        for (List<int[]> stateTransitions : nfa.rangeTransitions) {
+            for (int[] transition : stateTransitions) {
+                classStarts.add(transition[0]);
+                if (transition[1] < RegexNfa.MAX_CHAR) classStarts.add(transition[1] + 1);
+            }
+        }
+        char[] characterClasses = new char[RegexNfa.MAX_CHAR + 1];
+        int classCount = 0;
+        Integer nextStart = classStarts.first();
+        while (nextStart != null) {
+            Integer followingStart = classStarts.higher(nextStart);
+            int end = followingStart == null ? RegexNfa.MAX_CHAR + 1 : followingStart;
+            Arrays.fill(characterClasses, nextStart, end, (char) classCount);
+            classCount++;
+            nextStart = followingStart;
+        }
+
+        // Subset construction.
+        Map<BitSet, Integer> stateIds = new HashMap<>();
+        List<BitSet> states = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+        BitSet startSet = new BitSet();
+        startSet.set(start);
+        closure(nfa, startSet);
+        stateIds.put(startSet, 0);
+        states.add(startSet);
+
+        for (int i = 0; i < states.size(); i++) {
+            BitSet[] moves = new BitSet[classCount];
+            BitSet set = states.get(i);
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                for (int[] transition : nfa.rangeTransitions.get(s)) {
+                    int lastClass = characterClasses[transition[1]];
+                    for (int c = characterClasses[transition[0]]; c <= lastClass; c++) {
+                        if (moves[c] == null) moves[c] = new BitSet();
+                        moves[c].set(transition[2]);
+                    }
+                }
+            }
+
+            int[] row = new int[classCount];
+            Map<BitSet, Integer> rowTargets = new HashMap<>();
+            for (int c = 0; c < classCount; c++) {
+                if (moves[c] == null) {
+                    row[c] = DEAD_STATE;
+                    continue;
+                }
+                Integer target = rowTargets.get(moves[c]);
+                if (target == null) {
+                    BitSet targetSet = (BitSet) moves[c].clone();
+                    closure(nfa, targetSet);
+                    target = stateIds.get(targetSet);
+                    if (target == null) {
+                        target = states.size();
+                        stateIds.put(targetSet, target);
+                        states.add(targetSet);
+                    }
+                    rowTargets.put(moves[c], target);
+                }
+                row[c] = target;
+            }
+            rows.add(row);
+        }
+
+        int[] transitions = new int[states.size() * classCount];
+        int[] acceptedTypes = new int[states.size()];
+        for (int i = 0; i < states.size(); i++) {
+            System.arraycopy(rows.get(i), 0, transitions, i * classCount, classCount);
+            BitSet set = states.get(i);
+            for (Map.Entry<Integer, Integer> entry : nfa.acceptingStates.entrySet()) {
+                if (set.get(entry.getKey())) acceptedTypes[i] |= 1 << entry.getValue();
+            }
+        }
+
+        return new TokenAutomaton(types, characterClasses, classCount, transitions, acceptedTypes);
+    }
+
+    static void closure(RegexNfa nfa, BitSet set)
+    {
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+            pending.push(s);
+        }
+        while (!pending.isEmpty()) {
+            for (int target : nfa.epsilonTransitions.get(pending.pop())) {
+                if (!set.get(target)) {
+                    set.set(target);
+                    pending.push(target);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package transpiler.scheme;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import transpiler.LineIndex;
+
+/**
+ * Tokens stored as parallel arrays of type ordinals, start offsets and lengths
+ * over the scanned source. `Token` objects are only created when asked for.
+ */
+public class TokenBuffer
+{
+    static TokenType[] TOKEN_TYPES = TokenType.values();
+    static int INITIAL_CAPACITY = 64;
+
+    CharSequence source;
+    int[] types;
+    int[] starts;
+    int[] lengths;
+    // Number tokens are tagged with `NumberLiteral.classify`, and others with 0.
+    int[] tags;
+    int size;
+    LineIndex lineIndex;
+    // Positions of the tokens in the code they were read from, when the source
+    // only has their values, or null.
+    int[] positions;
+
+    public TokenBuffer(CharSequence source)
+    {
+        this(source, INITIAL_CAPACITY);
+    }
+
+    public TokenBuffer(CharSequence source, int capacity)
+    {
+        this.source = source;
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.tags = new int[capacity];
+        this.size = 0;
+        this.lineIndex = null;
+        this.positions = null;
+    }
+
+    /**
+     * Build a buffer whose source is the concatenation of the token values.
+     */
+    public static TokenBuffer of(List<Token> tokenList)
+    {
+        return of(tokenList, null);
+    }
+
+    /**
+     * Build a buffer of tokens which keeps their positions in a code whose
+     * lines are in the line index, so the nodes and the errors have their
+     * locations in that code. Without the line index, the positions are in
+     * the source, which is the concatenation of the token values either way.
+     */
+    public static TokenBuffer of(List<Token> tokenList, LineIndex lineIndex)
+    {
+        return of(tokenList.iterator(), lineIndex);
+    }
+
+    /**
+     * Build a buffer of the tokens as they're read, such as from a
+     * `TokenStream`, which only keeps their values.
+     */
+    public static TokenBuffer of(Iterator<Token> tokens, LineIndex lineIndex)
+    {
+        StringBuilder source = new StringBuilder();
+        TokenBuffer buffer = new TokenBuffer(source);
+        if (lineIndex != null) {
+            buffer.positions = new int[buffer.types.length];
+            buffer.lineIndex = lineIndex;
+        }
+        while (tokens.hasNext()) {
+            Token token = tokens.next();
+            int start = source.length();
+            source.append(token.value);
+            if (buffer.positions != null) {
+                buffer.ensureCapacity(buffer.size + 1);
+                buffer.positions[buffer.size] = token.position;
+            }
+            buffer.add(token.type, start, token.value.length());
+        }
+        return buffer;
+    }
+
+    public void add(TokenType type, int start, int length)
+    {
+        ensureCapacity(size + 1);
+        types[size] = type == null ? -1 : type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        tags[size] = type == TokenType.NUMBER ?
+            NumberLiteral.classify(source, start, start + length) : 0;
+        size++;
+    }
+
+    /**
+     * Append the tokens of a buffer over the same source.
+     */
+    public void addAll(TokenBuffer other)
+    {
+        addAll(other, 0, other.size, 0);
+    }
+
+    /**
+     * Append the tokens from `from` to `to` of another buffer, moving them by
+     * `shift` characters in the source.
+     */
+    public void addAll(TokenBuffer other, int from, int to, int shift)
+    {
+        int count = to - from;
+        if (other.positions != null && positions == null) {
+            positions = new int[types.length];
+        }
+        ensureCapacity(size + count);
+        if (other.positions != null) {
+            for (int i = 0; i < count; i++) {
+                positions[size + i] = other.positions[from + i] + shift;
+            }
+        }
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+        System.arraycopy(other.tags, from, tags, size, count);
+        if (shift == 0) {
+            System.arraycopy(other.starts, from, starts, size, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                starts[size + i] = other.starts[from + i] + shift;
+            }
+        }
+        size += count;
+    }
+
+    void ensureCapacity(int minCapacity)
+    {
+        if (minCapacity <= types.length) return;
+
+        int capacity = Math.max(Math.max(types.length * 2, minCapacity), INITIAL_CAPACITY);
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        tags = Arrays.copyOf(tags, capacity);
+        if (positions != null) positions = Arrays.copyOf(positions, capacity);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public CharSequence source()
+    {
+        return source;
+    }
+
+    public TokenType type(int index)
+    {
+        return types[index] < 0 ? null : TOKEN_TYPES[types[index]];
+    }
+
+    public int start(int index)
+    {
+        return starts[index];
+    }
+
+    public int length(int index)
+    {
+        return lengths[index];
+    }
+
+    public int tag(int index)
+    {
+        return tags[index];
+    }
+
+    public int end(int index)
+    {
+        return starts[index] + lengths[index];
+    }
+
+    /**
+     * Return the position of the token in the source, or the end of the last
+     * token if the index is past it.
+     */
+    public int position(int index)
+    {
+        if (positions != null) {
+            if (index < size) return positions[index];
+            return size == 0 ? 0 : positions[size - 1] + lengths[size - 1];
+        }
+        if (index < size) return starts[index];
+        return size == 0 ? 0 : end(size - 1);
+    }
+
+    /**
+     * Return the line index of the source, or of the code which it's part of.
+     */
+    public LineIndex lineIndex()
+    {
+        if (lineIndex == null) {
+            lineIndex = new LineIndex(source);
+        }
+        return lineIndex;
+    }
+
+    /**
+     * Return the index of the first token which ends at pos or after it, or the
+     * size of the buffer if there's none.
+     */
+    public int firstTokenEndingFrom(int pos)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (end(middle) < pos) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public String value(int index)
+    {
+        return source.subSequence(starts[index], end(index)).toString();
+    }
+
+    /**
+     * Compare the value of a token without copying it out of the source.
+     */
+    public boolean valueEquals(int index, String value)
+    {
+        if (lengths[index] != value.length()) return false;
+
+        int start = starts[index];
+        for (int i = 0; i < value.length(); i++) {
+            if (source.charAt(start + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public Token get(int index)
+    {
+        return new Token(type(index), value(index), position(index));
+    }
+
+    /**
+     * Return a read-only list view which creates each token when it's accessed.
+     */
+    public List<Token> asList()
+    {
+        return new TokenList();
+    }
+
+    /**
+     * Return an iterator over the tokens which gives the line index of the
+     * source with them, so the forms parsed from them have their locations in
+     * it.
+     */
+    public Iterator<Token> iterator()
+    {
+        return new TokenIterator();
+    }
+
+    class TokenIterator implements LocatedTokens
+    {
+        int index = 0;
+
+        @Override
+        public boolean hasNext()
+        {
+            return index < size;
+        }
+
+        @Override
+        public Token next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return get(index++);
+        }
+
+        @Override
+        public LineIndex lineIndex()
+        {
+            return TokenBuffer.this.lineIndex();
+        }
+
+        @Override
+        public LineIndex lineIndexFromNextToken()
+        {
+            return lineIndex();
+        }
+    }
+
+    class TokenList extends AbstractList<Token> implements RandomAccess
+    {
+        @Override
+        public Token get(int index)
+        {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return TokenBuffer.this.get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package transpiler.scheme;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import transpiler.LineIndex;
+
+/**
+ * Tokens scanned incrementally from a reader. The code is read into a bounded
+ * buffer which only grows when a single token (or a run of intertoken space)
+ * doesn't fit in it.
+ *
+ * The tokens have their positions in the whole code, and the starts of its
+ * lines are added to a line index as the tokens are returned, so the nodes
+ * parsed from them and the errors have their locations in it. The index can be
+ * started again from the line of the next token, so a code read a form at a
+ * time only keeps the lines of the form. Positions past the range of an int
+ * aren't kept.
+ */
+class TokenStream implements LocatedTokens
+{
+    static int INITIAL_BUFFER_SIZE = 8192;
+
+    Reader reader;
+    SchemeScanner scanner;
+    char[] buffer;
+    // Position, in the whole input, of the first character in the buffer.
+    long bufferOffset;
+    // The unconsumed code is between `start` and `end`.
+    int start;
+    int end;
+    boolean endOfInput;
+    Token nextToken;
+    // Lines of the code, which are counted in the buffer up to `counted`, and
+    // the current line and its start.
+    LineIndex lineIndex;
+    int counted;
+    int line;
+    int lineStart;
+
+    public TokenStream(Reader reader, ScanMode mode)
+    {
+        this.reader = reader;
+        this.buffer = new char[INITIAL_BUFFER_SIZE];
+        this.bufferOffset = 0;
+        this.start = 0;
+        this.end = 0;
+        this.endOfInput = false;
+        this.scanner = new SchemeScanner(CharBuffer.wrap(buffer), mode);
+        this.scanner.reset(scanner.code, end);
+        this.nextToken = null;
+        this.lineIndex = new LineIndex();
+        this.counted = 0;
+        this.line = 1;
+        this.lineStart = 0;
+    }
+
+    @Override
+    public LineIndex lineIndex()
+    {
+        return lineIndex;
+    }
+
+    @Override
+    public LineIndex lineIndexFromNextToken()
+    {
+        hasNext();
+        lineIndex = new LineIndex(line, lineStart);
+        return lineIndex;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (nextToken == null) {
+            nextToken = scanToken();
+        }
+        return nextToken != null;
+    }
+
+    @Override
+    public Token next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Token token = nextToken;
+        nextToken = null;
+        return token;
+    }
+
+    Token scanToken()
+    {
+        while (true) {
+            int tokenStart = scanner.skipIntertokenSpace(start);
+            if (scanner.hitEnd && !endOfInput) {
+                fillBuffer();
+                continue;
+            }
+            start = tokenStart;
+
+            int tokenEnd = scanner.matchTokenEnd(tokenStart);
+            if (scanner.hitEnd && !endOfInput) {
+                fillBuffer();
+                continue;
+            }
+
+            if (tokenEnd < 0) {
+                if (tokenStart == end) return null;
+                countLines(tokenStart);
+                long position = bufferOffset + tokenStart;
+                String location = position <= Integer.MAX_VALUE
+                    ? lineIndex.describe((int) position) + " "
+                    : "";
+                throw new RuntimeException("No valid token was found at " + location
+                                           + "(position " + position + ").");
+            }
+
+            start = tokenEnd;
+            countLines(tokenStart);
+            long position = bufferOffset + tokenStart;
+            return new Token(scanner.matchedType,
+                             new String(buffer, tokenStart, tokenEnd - tokenStart),
+                             position <= Integer.MAX_VALUE ? (int) position : -1);
+        }
+    }
+
+    /**
+     * Drop the consumed code from the buffer and read more, growing the buffer
+     * if the unconsumed code already fills it.
+     */
+    void fillBuffer()
+    {
+        countLines(start);
+        int unconsumed = end - start;
+        char[] target = unconsumed == buffer.length ? new char[buffer.length * 2] : buffer;
+        System.arraycopy(buffer, start, target, 0, unconsumed);
+        bufferOffset += start;
+        counted -= start;
+        start = 0;
+        end = unconsumed;
+        buffer = target;
+
+        // The buffer is filled completely, since the scan restarts from the start
+        // of the unconsumed code after each fill.
+        try {
+            while (end < buffer.length) {
+                int read = reader.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    endOfInput = true;
+                    break;
+                }
+                end += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        scanner.reset(CharBuffer.wrap(buffer), end);
+    }
+
+    /**
+     * Add the line starts in the buffer up to `to`, which is never between a
+     * "\r" and a "\n", since it's the start or the end of a token.
+     */
+    void countLines(int to)
+    {
+        for (int i = counted; i < to; i++) {
+            char c = buffer[i];
+            // "\r\n" is a single line ending.
+            if (c == '\n' || (c == '\r' && (i + 1 == to || buffer[i + 1] != '\n'))) {
+                long start = bufferOffset + i + 1;
+                if (start <= Integer.MAX_VALUE) {
+                    line++;
+                    lineStart = (int) start;
+                    lineIndex.addLineStart(lineStart);
+                }
+            }
+        }
+        counted = to;
+    }
+}
@@ -2,12 +2,20 @@ package transpiler;
 
 import static transpiler.ASTNodeTestUtils.compareASTNodes;
 import static transpiler.ASTNodeTestUtils.n;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Ignore;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import transpiler.scheme.ScanMode;
+import transpiler.scheme.SchemeParser;
+import transpiler.scheme.SchemeScanner;
 
 public class IntermediateRepresentationTest
 {
@@ -633,4 +641,79 @@ public class IntermediateRepresentationTest
         ir.addTypes();
         compareASTNodes(expectedAst, ir.ast);
     }
+
+    @Test
+    public void convertNumberLiterals()
+    {
+        Map<String, String> conversions =
+            Map.ofEntries(Map.entry("12", "Complex(12, 0)"),
+                          Map.entry("#x1f", "Complex(31, 0)"),
+                          Map.entry("#b-101", "Complex(-5, 0)"),
+                          Map.entry("#o17", "Complex(15, 0)"),
+                          Map.entry("#x#e10", "Complex(16, 0)"),
+                          Map.entry("4294967296", "Complex(4294967296L, 0)"),
+                          Map.entry("#xffffffffffffffffff",
+                                    "Complex(BigInt(\"4722366482869645213695\"), 0)"),
+                          Map.entry("6/4", "Complex(Rational(3, 2), 0)"),
+                          Map.entry("#i1/4", "Complex(0.25, 0)"),
+                          Map.entry("1.", "Complex(1.0, 0)"),
+                          Map.entry("#e1.5", "Complex(Rational(3, 2), 0)"),
+                          Map.entry("-inf.0", "Complex(Double.NegativeInfinity, 0)"),
+                          Map.entry("1+2i", "Complex(1, 2)"),
+                          Map.entry("-i", "Complex(0, -1)"),
+                          Map.entry("1e-3-inf.0i", "Complex(0.001, Double.NegativeInfinity)"),
+                          Map.entry("1@-2", "Polar(1, -2)"));
+        for (Map.Entry<String, String> entry : conversions.entrySet()) {
+            assertEquals(entry.getKey(),
+                         entry.getValue(),
+                         IntermediateRepresentation.convertNumberLiteral(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void streamScalaCode()
+    {
+        String code = "(define x 1)\n(display (+ x 2))\n(define (f a) (if (> a 1) a 2))\n(f 3)";
+        String scalaCode = Transpiler.convertSchemeToScalaCode(new StringReader(code), ScanMode.DFA);
+
+        StringWriter output = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(output)) {
+            Transpiler.convertSchemeToScalaCode(SchemeScanner.tokenize(new StringReader(code), ScanMode.DFA),
+                                                writer);
+        }
+        assertEquals(scalaCode + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    public void readerErrorLocations()
+    {
+        String code = "(define x 1)\n\n(display x)\n  (f 1))\n";
+        for (ScanMode mode : ScanMode.values()) {
+            try {
+                Transpiler.convertSchemeToScalaCode(new StringReader(code), mode);
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("\")\" at line 4, column 8"));
+            }
+        }
+
+        SchemeParser parser = new SchemeParser(SchemeScanner.scan(new StringReader("(define x 1)\n\n(display x)\n"),
+                                                                  ScanMode.DFA));
+        ASTNode program = parser.parse();
+        assertEquals("line 3, column 1", program.children.get(1).describeLocation());
+    }
+
+    @Test
+    public void compactScalaCode()
+    {
+        String code = "(define x '(1 #t))\n(define (f a . b) (if (> a 1.5) (g a) \"s\"))\n"
+            + "(display (lambda (y) (+ y x)))\n(set! x (quote y))\n(begin (f 3) #\\a)";
+        List<String> scalaCodes = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SchemeParser parser = new SchemeParser(SchemeScanner.scan(code, ScanMode.DFA));
+            parser.compact(i == 1);
+            scalaCodes.add(Transpiler.convertSchemeASTToScalaCode(parser.parse()));
+        }
+        assertEquals(scalaCodes.get(0), scalaCodes.get(1));
+    }
 }
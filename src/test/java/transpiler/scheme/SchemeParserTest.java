@@ -3,12 +3,22 @@ package transpiler.scheme;
 import transpiler.ASTNode;
 import static transpiler.ASTNodeTestUtils.compareASTNodes;
 import static transpiler.ASTNodeTestUtils.n;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Ignore;
 import java.util.List;
 import java.util.Map;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.io.StringReader;
+import java.time.Duration;
 
 public class SchemeParserTest
 {
@@ -495,4 +505,727 @@ public class SchemeParserTest
         }
         return tokenList;
     }
+
+    /**
+     * A program with most kinds of forms, and small programs with and without
+     * errors, which every way of parsing must parse the same.
+     */
+    static String SAMPLE_PROGRAM = """
+        (import (scheme base) (only (scheme write) display) (rename (srfi 1) (fold f)))
+        (define-record-type point (make-point x y) point? (x point-x) (y point-y set-y!))
+        (define (f a . rest) (if (> a 0) (f (- a 1)) '(a #(b) . c)))
+        (define-values (q r) (floor/ 7 2))
+        (set! x (lambda args (begin (display "x") #t)))
+        (define (g) (define y 1) (display y) (if y 'y))
+        (f -1 2.5 #\\a (quote (b c)) (include "e.scm"))
+        """;
+    static List<String> SAMPLE_CODES = List.of(SAMPLE_PROGRAM,
+                                               "(import (scheme base)) (import (scheme write))",
+                                               "(f 1)\n  (g 2))",
+                                               "(f 1)\n  (g (if))",
+                                               "(define (f) (if");
+    // Thousands of small top-level forms.
+    static String MANY_FORMS = manyForms(3000);
+
+    static String manyForms(int count)
+    {
+        StringBuilder code = new StringBuilder("(import (scheme base))\n");
+        for (int i = 0; i < count; i++) {
+            code.append("(define (f").append(i).append(" a) (if (> a ").append(i).append(") a '(b c)))\n");
+            code.append("x").append(i).append("\n'y\n");
+        }
+        return code.toString();
+    }
+
+    /**
+     * Parse the code with each of the ways, each given a new parser of its
+     * tokens, and check that they give the same tree, or fail with the same
+     * message.
+     */
+    @SafeVarargs
+    static void assertSameResult(String code, Function<SchemeParser, ASTNode>... engines)
+    {
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        String[] messages = new String[engines.length];
+        ASTNode[] asts = new ASTNode[engines.length];
+        for (int i = 0; i < engines.length; i++) {
+            try {
+                asts[i] = engines[i].apply(new SchemeParser(tokens));
+            } catch (RuntimeException e) {
+                messages[i] = e.getMessage();
+            }
+        }
+        for (int i = 1; i < engines.length; i++) {
+            assertEquals(code, messages[0], messages[i]);
+            if (asts[0] != null) compareASTNodes(asts[0], asts[i]);
+        }
+    }
+
+    @Test
+    public void reportLocationOfNodesAndErrors()
+    {
+        ASTNode ast = SchemeScanner.generateAST("(f 1)\n  (g\n   2)");
+        ASTNode secondCall = ast.children.get(1);
+        assertEquals("line 2, column 3", secondCall.describeLocation());
+        assertEquals("line 3, column 4", secondCall.getByPath("$COMMAND.EXPRESSION.PROCEDURE_CALL.OPERAND")
+                     .describeLocation());
+
+        try {
+            SchemeScanner.generateAST("(f 1)\n  (g 2))");
+            assertTrue(false);
+        } catch (RuntimeException e) {
+            assertEquals("Unexpected token \")\" at line 2, column 8.", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void memoizeRulesByPosition()
+    {
+        // Each body expression is parsed as a COMMAND and then again as the last
+        // EXPRESSION, so this takes exponential time without memoization.
+        String code = "(define x " + "(lambda () ".repeat(30) + "1" + ")".repeat(30) + ")";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        SchemeParser parser = new SchemeParser(tokens);
+        parser.memoizeAll();
+        ASTNode ast = parser.parse();
+        assertEquals(30, countNestedLambdas(ast));
+        assertTrue(parser.memoReport().contains("EXPRESSION"));
+
+        code = "(define (f a) (g (h a) 1)) (f 2)";
+        tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        parser = new SchemeParser(tokens);
+        parser.memoize(Arrays.asList("EXPRESSION", "DATUM"));
+        compareASTNodes(new SchemeParser(tokens).parse(), parser.parse());
+        assertEquals(1, parser.memo.size());
+        assertEquals(parser.memo.get("EXPRESSION").size(), parser.memoSize());
+    }
+
+    @Test
+    public void predictAlternativesByNextTokens()
+    {
+        PredictiveTables tables = PredictiveTables.forDefinitions(SchemeParser.DEFAULT_DEFINITIONS);
+        int[] alternatives = tables.alternatives("EXPRESSION",
+                                                 tables.terminalClass("("),
+                                                 tables.terminalClass("if"));
+        // Only CONDITIONAL and PROCEDURE_CALL can start with "(" and "if".
+        assertEquals(Arrays.asList(3, 6), Arrays.stream(alternatives).boxed().toList());
+        assertEquals(0, tables.alternatives("EXPRESSION", -1, -1).length);
+
+        // The errors are reported at the same tokens, including those after
+        // the first token of a skipped alternative.
+        for (String code : Arrays.asList(SAMPLE_PROGRAM, "(f 1)\n  (g (if))", "()", "(define)", "'#(1 . 2)")) {
+            assertSameResult(code,
+                             SchemeParser::parse,
+                             parser -> {
+                                 parser.predict(false);
+                                 return parser.parse();
+                             });
+        }
+        SchemeParser parser = new SchemeParser(SchemeScanner.scan("()", ScanMode.DFA));
+        try {
+            parser.parse();
+            assertTrue(false);
+        } catch (RuntimeException e) {
+            assertEquals("Unexpected token \")\" at line 1, column 2.", e.getMessage());
+        }
+    }
+    @Test(timeout = 20000)
+    public void parseLongArgumentLists()
+    {
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 1; i <= 10000; i++) {
+            arguments.append(" a").append(i);
+        }
+
+        TokenBuffer tokens = SchemeScanner.scan("(f" + arguments + ")", ScanMode.DFA);
+        ASTNode ast = new SchemeParser(tokens).parse();
+        ASTNode call = ast.getByPath("$COMMAND_OR_DEFINITION.COMMAND.EXPRESSION.PROCEDURE_CALL");
+        assertEquals(10000, call.getAll("OPERAND").size());
+
+        // The IDENTIFIER* of the dotted formals is backtracked one match at a
+        // time before the plain formals are tried.
+        tokens = SchemeScanner.scan("(define (f" + arguments + ") a1)", ScanMode.DFA);
+        ast = new SchemeParser(tokens).parse();
+        ASTNode formals = ast.getByPath("$COMMAND_OR_DEFINITION.DEFINITION.DEF_FORMALS");
+        assertEquals(10000, formals.getAll("IDENTIFIER").size());
+    }
+
+    @Test
+    public void matchPatternsByTokenType()
+    {
+        // "-1" starts like the identifier "-", but it's a number token.
+        ASTNode expectedAst =
+            n("PROGRAM",
+              n("COMMAND_OR_DEFINITION",
+                n("COMMAND",
+                  n("EXPRESSION",
+                    n("PROCEDURE_CALL",
+                      n("OPERATOR",
+                        n("EXPRESSION",
+                          n("IDENTIFIER", "-"))),
+                      n("OPERAND",
+                        n("EXPRESSION",
+                          n("LITERAL",
+                            n("SELF_EVALUATING",
+                              n("NUMBER", "-1"))))))))));
+        String code = "(- -1)";
+        SchemeParser parser = new SchemeParser(SchemeScanner.tokenize(code));
+        compareASTNodes(expectedAst, parser.parse());
+
+        Term term = SchemeParser.convertToTerm(SchemeScanner.IDENTIFIER);
+        assertEquals(TokenType.IDENTIFIER, term.tokenType);
+        term = SchemeParser.convertToTerm(SchemeScanner.UINTEGER(10));
+        assertEquals(null, term.tokenType);
+        assertTrue(term.pattern.matcher("10").find());
+    }
+
+    @Test
+    public void compileDefaultDefinitions()
+    {
+        SchemeParser sampleParser = new SchemeParser(SchemeScanner.scan(SAMPLE_PROGRAM, ScanMode.DFA));
+        assertTrue(sampleParser.compiledParser != null);
+        assertEquals(7, sampleParser.parse().children.size());
+        String[] codes = {
+            SAMPLE_PROGRAM,
+            "(define x " + "(lambda () ".repeat(8) + "1" + ")".repeat(8) + ")",
+            "(f 1)\n  (g (if))",
+        };
+        for (String code : codes) {
+            assertSameResult(code,
+                             SchemeParser::parse,
+                             parser -> {
+                                 parser.useCompiledParser(false);
+                                 return parser.parse();
+                             },
+                             parser -> {
+                                 parser.memoizeAll();
+                                 return parser.parse();
+                             });
+        }
+    }
+    @Test(timeout = 20000)
+    public void parseWithExplicitStack()
+    {
+        for (String code : SAMPLE_CODES) {
+            assertSameResult(code,
+                             parser -> {
+                                 parser.useCompiledParser(false);
+                                 return parser.parse();
+                             },
+                             parser -> {
+                                 parser.useExplicitStack(true);
+                                 return parser.parse();
+                             },
+                             parser -> {
+                                 parser.useExplicitStack(true);
+                                 parser.memoizeAll();
+                                 return parser.parse();
+                             });
+        }
+
+        // Code nested too deeply for the stack is parsed with an explicit one.
+        int depth = 50000;
+        TokenBuffer tokens = SchemeScanner.scan("(f ".repeat(depth) + "1" + ")".repeat(depth),
+                                                ScanMode.DFA);
+        for (int i = 0; i < 2; i++) {
+            SchemeParser parser = new SchemeParser(tokens);
+            parser.useExplicitStack(i == 1);
+            assertEquals(depth, countCalls(parser.parse()));
+        }
+    }
+
+    /**
+     * Count the procedure calls of the tree, without recursive calls, since it
+     * may be deeply nested.
+     */
+    static int countCalls(ASTNode ast)
+    {
+        int calls = 0;
+        ArrayDeque<ASTNode> nodes = new ArrayDeque<>(List.of(ast));
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            if (node.type.equals("PROCEDURE_CALL")) calls++;
+            nodes.addAll(node.children);
+        }
+        return calls;
+    }
+
+    /**
+     * Compare the trees as `compareASTNodes` does, without recursive calls.
+     */
+    static void compareDeepASTNodes(ASTNode expected, ASTNode actual)
+    {
+        ArrayDeque<ASTNode> nodes = new ArrayDeque<>(List.of(expected, actual));
+        while (!nodes.isEmpty()) {
+            ASTNode expectedNode = nodes.pop();
+            ASTNode actualNode = nodes.pop();
+            assertTrue(expectedNode.equals(actualNode));
+            for (int i = 0; i < expectedNode.children.size(); i++) {
+                nodes.push(actualNode.children.get(i));
+                nodes.push(expectedNode.children.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void parseTopLevelFormsInParallel()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<String> codes = new ArrayList<>(SAMPLE_CODES);
+        codes.add(MANY_FORMS);
+        codes.add("(f 1) (g");
+        for (String code : codes) {
+            assertSameResult(code, SchemeParser::parse, parser -> parser.parseParallel(pool));
+        }
+
+        // A form nested too deeply for the stack of its thread is parsed with
+        // an explicit one.
+        int depth = 50000;
+        TokenBuffer tokens = SchemeScanner.scan("(define x 1)\n" + "(f ".repeat(depth) + "1"
+                                                + ")".repeat(depth),
+                                                ScanMode.DFA);
+        ASTNode ast = new SchemeParser(tokens).parseParallel(pool);
+        assertEquals(2, ast.children.size());
+        assertEquals(depth, countCalls(ast));
+        pool.shutdown();
+    }
+
+    @Test(timeout = 20000)
+    public void streamTopLevelForms()
+    {
+        String[] codes = {
+            MANY_FORMS,
+            "(import (scheme base)) (import (scheme write))",
+            "(import (scheme base)) (begin (f 1) (g 2)) #(1 2) (quote (b c))",
+            "",
+        };
+        for (String c : codes) {
+            ASTNode program = new SchemeParser(SchemeScanner.scan(c, ScanMode.DFA)).parse();
+            List<ASTNode> forms = SchemeParser
+                .streamForms(SchemeScanner.tokenize(new StringReader(c), ScanMode.DFA))
+                .collect(Collectors.toList());
+            List<ASTNode> expectedForms = program == null ? List.of() : program.children;
+            assertEquals(expectedForms.size(), forms.size());
+            for (int i = 0; i < forms.size(); i++) {
+                compareASTNodes(expectedForms.get(i), forms.get(i));
+            }
+
+            SchemeParser compactParser = new SchemeParser(SchemeScanner.scan(c, ScanMode.DFA));
+            compactParser.compact(true);
+            program = compactParser.parse();
+            expectedForms = program == null ? List.of() : program.children;
+            Iterator<ASTNode> compactForms =
+                SchemeParser.parseForms(SchemeScanner.tokenize(new StringReader(c), ScanMode.DFA), null, true);
+            for (ASTNode expectedForm : expectedForms) {
+                compareASTNodes(expectedForm, compactForms.next());
+            }
+            assertTrue(!compactForms.hasNext());
+        }
+
+        // The forms before an error are parsed before it's found.
+        Iterator<ASTNode> forms =
+            SchemeParser.parseForms(SchemeScanner.tokenize(new StringReader("(f 1) )"),
+                                                           ScanMode.DFA));
+        compareASTNodes(new SchemeParser(SchemeScanner.tokenize("(f 1)")).parse().children.get(0),
+                        forms.next());
+        try {
+            forms.next();
+            assertTrue(false);
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected token \")\""));
+        }
+    }
+
+    @Test
+    public void streamFormLocations()
+    {
+        String code = "(define x 1)\r\n\r\n(display x)\n  (f 1))\n";
+        int bufferSize = TokenStream.INITIAL_BUFFER_SIZE;
+        TokenStream.INITIAL_BUFFER_SIZE = 4;
+        try {
+            List<Iterator<Token>> sources = List.of(SchemeScanner.tokenize(new StringReader(code), ScanMode.DFA),
+                                                    SchemeScanner.scan(code, ScanMode.DFA).iterator());
+            for (Iterator<Token> tokens : sources) {
+                Iterator<ASTNode> forms = SchemeParser.parseForms(tokens);
+                assertEquals("line 1, column 1", forms.next().describeLocation());
+                assertEquals("line 3, column 1", forms.next().describeLocation());
+                assertEquals("line 4, column 3", forms.next().describeLocation());
+                try {
+                    forms.next();
+                    assertTrue(false);
+                } catch (RuntimeException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("\")\" at line 4, column 8"));
+                }
+            }
+
+            try {
+                SchemeScanner.tokenize(new StringReader("(f 1)\r\n(g\r\n  [)"), ScanMode.DFA)
+                    .forEachRemaining(token -> {});
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertEquals("No valid token was found at line 3, column 3 (position 13).", e.getMessage());
+            }
+
+            // Each form keeps the lines from its first one, and the stream
+            // drops the lines before it.
+            TokenStream tokens = new TokenStream(new StringReader("(f 1)\n".repeat(1000) + "(g\n 2)"),
+                                                 ScanMode.DFA);
+            List<ASTNode> forms = new ArrayList<>();
+            SchemeParser.parseForms(tokens).forEachRemaining(forms::add);
+            assertEquals("line 1000, column 1", forms.get(999).describeLocation());
+            ASTNode argument = forms.get(1000);
+            while (!argument.children.isEmpty()) {
+                argument = argument.children.get(argument.children.size() - 1);
+            }
+            assertEquals("line 1002, column 2", argument.describeLocation());
+            assertEquals(1001, tokens.lineIndex().line(0));
+        } finally {
+            TokenStream.INITIAL_BUFFER_SIZE = bufferSize;
+        }
+    }
+
+    @Test
+    public void classifyFormsByTheirData()
+    {
+        List<String> codes = new ArrayList<>(SAMPLE_CODES);
+        codes.add("(lambda)");
+        codes.add("(define-syntax f (syntax-rules ()))");
+        for (String code : codes) {
+            assertSameResult(code, SchemeParser::parse, SchemeParser::parseData);
+        }
+
+        // Long argument lists and deep nesting are read in linear time.
+        int count = 20000;
+        TokenBuffer tokens = SchemeScanner.scan("(f" + " 1".repeat(count) + " (g".repeat(500)
+                                                + ")".repeat(501),
+                                                ScanMode.DFA);
+        compareASTNodes(new SchemeParser(tokens).parse(), new SchemeParser(tokens).parseData());
+
+        // Forms nested too deeply for the stack are classified from their
+        // innermost data out.
+        int depth = 20000;
+        String[] deepCodes = {
+            "(f ".repeat(depth) + "1" + ")".repeat(depth),
+            "(define x '" + "(".repeat(depth) + ")".repeat(depth) + ")",
+            "(import " + "(only ".repeat(depth) + "(scheme base)" + " car)".repeat(depth) + ")\n(f 1)",
+        };
+        for (String code : deepCodes) {
+            tokens = SchemeScanner.scan(code, ScanMode.DFA);
+            assertTrue(new FormClassifier(new SchemeParser(tokens)).classifyProgram() != null);
+            for (boolean compact : new boolean[] {false, true}) {
+                SchemeParser parser = new SchemeParser(tokens);
+                parser.compact(compact);
+                ASTNode ast = parser.parse();
+                parser = new SchemeParser(tokens);
+                parser.compact(compact);
+                compareDeepASTNodes(ast, parser.parseData());
+            }
+        }
+        tokens = SchemeScanner.scan("(begin ".repeat(depth) + "(f 1)" + ")".repeat(depth), ScanMode.DFA);
+        ASTNode program = new FormClassifier(new SchemeParser(tokens)).classifyProgram();
+        assertEquals(1, countCalls(program));
+    }
+
+    @Test
+    public void profileRulesAndAlternatives()
+    {
+        String code = "(define (f a) (if (> a 0) (f (- a 1)) '(a b)))\n(f 3)";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        ParserProfile[] profiles = new ParserProfile[2];
+        for (int i = 0; i < 2; i++) {
+            profiles[i] = new ParserProfile();
+            SchemeParser parser = new SchemeParser(tokens);
+            parser.useExplicitStack(i == 1);
+            parser.profile(profiles[i]);
+            compareASTNodes(new SchemeParser(tokens).parse(), parser.parse());
+        }
+
+        RuleProfile calls = profiles[0].rules.get("PROCEDURE_CALL");
+        // The 4 calls are parsed again when the alternatives around them fail.
+        assertEquals(7, calls.counters.successes);
+        assertEquals(calls.counters.successes, calls.alternatives[0].successes);
+        assertEquals(tokens.size(), profiles[0].rules.get("PROGRAM").counters.tokens);
+        assertTrue(profiles[0].report().contains("PROCEDURE_CALL"));
+        assertTrue(profiles[0].toJson().contains("{\"name\": \"PROCEDURE_CALL\", \"attempts\": "));
+
+        // Both interpreters count the same, apart from the time.
+        for (RuleProfile ruleProfile : profiles[0].rules.values()) {
+            RuleProfile other = profiles[1].rules.get(ruleProfile.ruleName);
+            for (int i = -1; i < ruleProfile.alternatives.length; i++) {
+                ProfileCounters a = i < 0 ? ruleProfile.counters : ruleProfile.alternatives[i];
+                ProfileCounters b = i < 0 ? other.counters : other.alternatives[i];
+                assertEquals(a.attempts, b.attempts);
+                assertEquals(a.successes, b.successes);
+                assertEquals(a.failures, b.failures);
+                assertEquals(a.backtracks, b.backtracks);
+                assertEquals(a.tokens, b.tokens);
+            }
+        }
+        assertEquals(profiles[0].rules.keySet(), profiles[1].rules.keySet());
+    }
+
+    @Test
+    public void limitTheParseBudget()
+    {
+        String code = "(define (f a) (if (> a 0) (f (- a 1)) '(a b)))\n(f 3)";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        String[] limits = {"steps", "backtracks", "time"};
+        for (String limit : limits) {
+            String message = null;
+            // The generated parser, the interpreter and the explicit stack all
+            // stop at the same rule and token.
+            for (int i = 0; i < 3; i++) {
+                SchemeParser parser = new SchemeParser(tokens);
+                parser.useCompiledParser(i == 0);
+                parser.useExplicitStack(i == 2);
+                if (limit.equals("steps")) parser.limitSteps(40);
+                if (limit.equals("backtracks")) parser.limitBacktracks(0);
+                if (limit.equals("time")) parser.limitTime(Duration.ZERO);
+                try {
+                    parser.parse();
+                    assertTrue(false);
+                } catch (ParseBudgetException e) {
+                    assertEquals(limit, e.limit);
+                    assertEquals(tokens.position(e.tokenIndex), e.position);
+                    assertTrue(e.getMessage().contains("in the rule " + e.ruleName + " at "));
+                    if (message != null) assertEquals(message, e.getMessage());
+                    message = e.getMessage();
+                }
+            }
+        }
+
+        // Within the limits, the result is the same.
+        SchemeParser parser = new SchemeParser(tokens);
+        parser.limitSteps(100000);
+        parser.limitBacktracks(100);
+        parser.limitTime(Duration.ofMinutes(1));
+        compareASTNodes(new SchemeParser(tokens).parse(), parser.parse());
+
+        // The limits of a parallel parse bound the steps and backtracks of all
+        // its threads together, rather than those of each range of forms.
+        ForkJoinPool pool = new ForkJoinPool(4);
+        tokens = SchemeScanner.scan(MANY_FORMS, ScanMode.DFA);
+        parser = new SchemeParser(tokens);
+        ASTNode ast = parser.parse();
+        long steps = parser.steps;
+        long backtracks = parser.backtracks;
+        assertTrue(backtracks > 0);
+        for (String limit : Arrays.asList("steps", "backtracks")) {
+            parser = new SchemeParser(tokens);
+            if (limit.equals("steps")) parser.limitSteps(steps / 4);
+            if (limit.equals("backtracks")) parser.limitBacktracks(backtracks / 4);
+            try {
+                parser.parseParallel(pool);
+                assertTrue(false);
+            } catch (ParseBudgetException e) {
+                assertEquals(limit, e.limit);
+            }
+        }
+        parser = new SchemeParser(tokens);
+        parser.limitSteps(steps * 2);
+        parser.limitBacktracks(backtracks * 2);
+        compareASTNodes(ast, parser.parseParallel(pool));
+        pool.shutdown();
+    }
+
+    @Test
+    public void reparseEditedForms()
+    {
+        String code = """
+(import (scheme base))
+(define (f a) (+ a 1))
+(display (f 2))
+(f 3)""";
+        SchemeParser parser = new SchemeParser(SchemeScanner.scan(code, ScanMode.DFA));
+        ASTNode ast = parser.parseIncrementally();
+        compareASTNodes(SchemeScanner.generateAST(code), ast);
+        assertEquals(0, parser.syntaxErrors().size());
+
+        // Only the edited form is parsed again.
+        SchemeParser edited = parser.edit(code.indexOf("(+ a 1)"), 7, "(* a 2)", ScanMode.DFA);
+        ASTNode editedAst = edited.parseIncrementally();
+        compareASTNodes(SchemeScanner.generateAST(code.replace("(+ a 1)", "(* a 2)")), editedAst);
+        assertEquals(12, edited.incrementalParse.reparsedTokenCount);
+        for (int i : new int[] {0, 2, 3}) {
+            assertTrue(ast.children.get(i) == editedAst.children.get(i));
+        }
+
+        // A missing ")" only breaks its form, and so does an unexpected one.
+        SchemeParser broken = edited.edit(code.indexOf("(f 2))") + 5, 1, "", ScanMode.DFA)
+            .edit(0, 0, ")", ScanMode.DFA);
+        ASTNode brokenAst = broken.parseIncrementally();
+        assertEquals(3, brokenAst.children.size());
+        List<String> messages = broken.syntaxErrors().stream()
+            .map(RuntimeException::getMessage)
+            .collect(Collectors.toList());
+        assertEquals(Arrays.asList("Unexpected token \")\" at line 1, column 1.",
+                                   "Unexpected end of code at line 3, column 15."),
+                     messages);
+        assertTrue(brokenAst.children.get(2) == editedAst.children.get(3));
+
+        // The reparse takes time proportional to the edit.
+        String longCode = "(define (f a) (+ a 1))\n".repeat(5000);
+        parser = new SchemeParser(SchemeScanner.scan(longCode, ScanMode.DFA));
+        parser.parseIncrementally();
+        edited = parser.edit(longCode.length() / 2 + 1, 6, "define-values", ScanMode.DFA);
+        assertEquals(5000, edited.parseIncrementally().children.size());
+        assertEquals(0, edited.syntaxErrors().size());
+        assertTrue(edited.incrementalParse.reparsedTokenCount < 20);
+
+        // The reused forms have their locations in the new code.
+        parser = new SchemeParser(SchemeScanner.scan("(f 1)\n(g 2)\n(h 3)", ScanMode.DFA));
+        ast = parser.parseIncrementally();
+        edited = parser.edit(4, 0, "0", ScanMode.DFA).edit(0, 0, ";c\n;c\n", ScanMode.DFA);
+        editedAst = edited.parseIncrementally();
+        assertTrue(ast.children.get(2) == editedAst.children.get(2));
+        String[] locations = {"line 3, column 1", "line 4, column 1", "line 5, column 1"};
+        for (int i = 0; i < 3; i++) {
+            assertEquals(locations[i], edited.describeLocation(editedAst.children.get(i)));
+        }
+        ASTNode argument = editedAst.children.get(2);
+        while (!argument.children.isEmpty()) {
+            argument = argument.children.get(argument.children.size() - 1);
+        }
+        assertEquals("line 5, column 4", edited.describeLocation(argument));
+
+        // The nodes are left as they are, so editing the same parser twice
+        // doesn't move them twice, and the previous program keeps its locations.
+        assertEquals("line 3, column 4", parser.describeLocation(argument));
+        assertEquals("line 3, column 4", argument.describeLocation());
+        SchemeParser once = parser.edit(0, 0, ";;\n", ScanMode.DFA);
+        once.parseIncrementally();
+        SchemeParser twice = parser.edit(0, 0, ";\n;\n;\n", ScanMode.DFA);
+        assertTrue(ast.children.get(2) == twice.parseIncrementally().children.get(2));
+        assertEquals("line 4, column 4", once.describeLocation(argument));
+        assertEquals("line 6, column 4", twice.describeLocation(argument));
+        assertEquals("line 6, column 1", twice.describeLocation(ast.children.get(2)));
+        assertEquals(12, ast.children.get(2).position);
+        assertEquals("line 3, column 4", parser.describeLocation(argument));
+        assertEquals("line 5, column 4", edited.describeLocation(argument));
+    }
+
+    @Test
+    public void leftFactorSharedPrefixes()
+    {
+        Map<String, Rule> definitions =
+            SchemeParser.buildDefinitions
+            (
+             "R", SchemeParser.nonterminal(SchemeParser.terms("(", SchemeParser.term("X", "*"), ")"),
+                                           SchemeParser.terms("(", SchemeParser.term("X", "*"), "end", ")")),
+             // "a" could be matched by X, so X* isn't factored.
+             "S", SchemeParser.nonterminal(SchemeParser.terms(SchemeParser.term("X", "*"), "a"),
+                                           SchemeParser.terms(SchemeParser.term("X", "*"))),
+             "X", SchemeParser.nonterminal("a")
+             );
+        assertEquals(1, definitions.get("R").exprs.size());
+        assertEquals(2, definitions.get("R'1").exprs.size());
+        assertEquals(2, definitions.get("S").exprs.size());
+
+        // The subrule is merged into the node of the rule, value included.
+        SchemeParser parser = new SchemeParser(tokens("DELIMITER", "(",
+                                                      "IDENTIFIER", "a",
+                                                      "IDENTIFIER", "a",
+                                                      "IDENTIFIER", "end",
+                                                      "DELIMITER", ")"),
+                                               definitions);
+        compareASTNodes(n("R", "end", n("X", "a"), n("X", "a")), parser.parse("R"));
+        parser = new SchemeParser(tokens("IDENTIFIER", "a", "IDENTIFIER", "a"), definitions);
+        compareASTNodes(n("S", "a", n("X", "a")), parser.parse("S"));
+
+        // The formals of a definition are matched once, whether they're dotted
+        // or not, and all the parsers build the same nodes.
+        String code = "(define (f a b) a)\n(define (g a . b) b)\n(define x (list 'a '(b . c)))";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        ParserProfile profile = new ParserProfile();
+        parser = new SchemeParser(tokens);
+        parser.profile(profile);
+        ASTNode ast = parser.parse();
+        RuleProfile formals = profile.rules.get("DEF_FORMALS");
+        assertEquals(1, formals.alternatives.length);
+        assertEquals(2, formals.counters.successes);
+        assertEquals(0, formals.counters.failures + formals.counters.backtracks);
+        for (int i = 0; i < 2; i++) {
+            parser = new SchemeParser(tokens);
+            parser.useCompiledParser(i == 0);
+            parser.useExplicitStack(i == 1);
+            compareASTNodes(ast, parser.parse());
+        }
+        compareASTNodes(n("DEF_FORMALS", n("IDENTIFIER", "a"), n("VAR_PARAMETER", n("IDENTIFIER", "b"))),
+                        ast.children.get(1).getByPath("$DEFINITION.DEF_FORMALS"));
+    }
+
+    @Test
+    public void collapseWrappers()
+    {
+        String code = "(display (+ 1 x))\n(define (f a) (list 'a a))";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        ASTNode ast = new SchemeParser(tokens).parse();
+        SchemeParser parser = new SchemeParser(tokens);
+        parser.compact(true);
+        ASTNode compactAst = parser.parse();
+
+        // The chains of wrappers are kept by the nodes at their ends, and the
+        // paths go through them.
+        ASTNode call = compactAst.children.get(0);
+        assertEquals("PROCEDURE_CALL", call.type);
+        assertEquals(Arrays.asList("COMMAND_OR_DEFINITION", "COMMAND", "EXPRESSION"),
+                     Arrays.asList(call.wrappers));
+        ASTNode one = call.getByPath("$OPERAND.EXPRESSION.PROCEDURE_CALL"
+                                     + ".OPERAND.EXPRESSION.LITERAL.SELF_EVALUATING.NUMBER");
+        assertEquals("NUMBER", one.type);
+        assertEquals("1", one.value);
+        assertEquals(Arrays.asList("OPERAND", "EXPRESSION", "LITERAL", "SELF_EVALUATING"),
+                     Arrays.asList(one.wrappers));
+        assertTrue(countNodes(compactAst) * 2 < countNodes(ast));
+
+        // The paths start after the wrappers of the node, and a node found at
+        // one of its wrappers is returned as a new node of that wrapper, which
+        // leaves the tree as it was.
+        assertTrue(compactAst.children.get(1).hasByPath("$BODY"));
+        ASTNode display = call.children.get(0);
+        String[] displayWrappers = display.wrappers;
+        ASTNode operator = call.getByPath("$OPERATOR");
+        assertEquals("OPERATOR", operator.type);
+        assertEquals(0, operator.wrappers.length);
+        ASTNode identifier = operator.children.get(0);
+        assertEquals("display", identifier.value);
+        assertEquals(Arrays.asList("EXPRESSION"), Arrays.asList(identifier.wrappers));
+        assertSame(display, call.children.get(0));
+        assertSame(displayWrappers, display.wrappers);
+        assertEquals(1, call.getAllByPath("$OPERATOR.EXPRESSION").size());
+        assertSame(display, call.children.get(0));
+
+        // The nodes with the same chain of wrappers share it.
+        ASTNode sum = call.getByPath("$OPERAND.EXPRESSION.PROCEDURE_CALL");
+        assertEquals("+", sum.children.get(0).value);
+        assertSame(display.wrappers, sum.children.get(0).wrappers);
+
+        // Without the wrappers, the tree is the same whatever the parser.
+        for (int i = 0; i < 4; i++) {
+            parser = new SchemeParser(tokens);
+            parser.compact(true);
+            parser.useCompiledParser(i == 0);
+            parser.useExplicitStack(i == 1);
+            if (i == 2) parser.memoizeAll();
+            compareASTNodes(ast, (i == 3 ? parser.parseData() : parser.parse()).expandWrappers());
+        }
+    }
+
+    static int countNodes(ASTNode node)
+    {
+        int count = 1;
+        for (ASTNode child : node.children) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    static int countNestedLambdas(ASTNode node)
+    {
+        int count = node.type.equals("LAMBDA_EXPRESSION") ? 1 : 0;
+        for (ASTNode child : node.children) {
+            count += countNestedLambdas(child);
+        }
+        return count;
+    }
 }
@@ -4,9 +4,18 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 import org.junit.Ignore;
+import transpiler.MappedSource;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 public class SchemeScannerTest
 {
@@ -19,7 +28,7 @@ public class SchemeScannerTest
         for (String tokenValue : tokenValues) {
             List<Token> expectedTokens =
                 Arrays.asList(new Token(TokenType.NUMBER, tokenValue));
-            List<Token> outputTokens = SchemeScanner.tokenize(tokenValue);
+            List<Token> outputTokens = tokenize(tokenValue);
             compareLists(expectedTokens, outputTokens);
         }
 
@@ -31,7 +40,7 @@ public class SchemeScannerTest
         }
         expectedTokens.add(new Token(TokenType.DELIMITER, ")"));
         String inputCode = "(" + String.join(" ", tokenValues) + ")";
-        compareLists(expectedTokens, SchemeScanner.tokenize(inputCode));
+        compareLists(expectedTokens, tokenize(inputCode));
     }
 
     @Ignore("TODO")
@@ -54,7 +63,7 @@ public class SchemeScannerTest
                           new Token(TokenType.NUMBER, "3"),
                           new Token(TokenType.DELIMITER, ")"),
                           new Token(TokenType.DELIMITER, ")"));
-        compareLists(expectedTokens, SchemeScanner.tokenize("(+ 1 (* 2 3))"));
+        compareLists(expectedTokens, tokenize("(+ 1 (* 2 3))"));
     }
 
     @Test
@@ -100,7 +109,323 @@ public class SchemeScannerTest
                           new Token(TokenType.DELIMITER, ")"),
                           new Token(TokenType.DELIMITER, ")"),
                           new Token(TokenType.DELIMITER, ")"));
-        compareLists(expectedTokens, SchemeScanner.tokenize(code));
+        compareLists(expectedTokens, tokenize(code));
+    }
+
+    @Test
+    public void matchTokensInPlace()
+    {
+        String code = "(foo  #t 12)";
+        assertEquals(6, SchemeScanner.skipIntertokenSpace(code, 4));
+        assertEquals(new Token(TokenType.BOOLEAN, "#t"), SchemeScanner.matchToken(code, 6));
+        assertEquals(new Token(TokenType.NUMBER, "12"), SchemeScanner.matchToken(code, 9));
+        assertEquals(new Token(TokenType.DELIMITER, ")"), SchemeScanner.matchToken(code, 11));
+    }
+
+    @Test
+    public void automatonMatchesLongestLexemeOfFirstMatchingType()
+    {
+        List<Token> expectedTokens =
+            Arrays.asList(new Token(TokenType.BOOLEAN, "#true"),
+                          new Token(TokenType.NUMBER, "1/2"),
+                          new Token(TokenType.NUMBER, "1.5"),
+                          new Token(TokenType.NUMBER, "-1"),
+                          new Token(TokenType.IDENTIFIER, "-a"),
+                          new Token(TokenType.IDENTIFIER, "|a b|"));
+        compareLists(expectedTokens, SchemeScanner.tokenize("#true 1/2 1.5 -1 -a |a b|",
+                                                            ScanMode.DFA));
+    }
+
+    @Test
+    public void scanModesMatchTheSameLexemes()
+    {
+        String[] lexemes = {"#true", "#false", "1/2", "1+2i", "1.5", "-inf.0i", "1+inf.0i", "+inf.0", ",@"};
+        for (String lexeme : lexemes) {
+            for (ScanMode mode : ScanMode.values()) {
+                List<Token> tokens = SchemeScanner.tokenize(lexeme, mode);
+                assertEquals(lexeme + " " + mode, 1, tokens.size());
+                assertEquals(lexeme, tokens.get(0).value);
+            }
+        }
+
+        String code = String.join(" ", lexemes) + " ... (a . b) #t1 1/2/3 1+2i+3 #b1/10 ,@'x";
+        compareLists(SchemeScanner.tokenize(code, ScanMode.DFA),
+                     SchemeScanner.tokenize(code, ScanMode.REGEX));
+    }
+
+    @Test
+    public void streamTokensFromReader() throws IOException
+    {
+        // The comment is longer than the stream's initial buffer.
+        String code = """
+; %s
+(define s "abc")
+(display (string-append s "!"))
+    """.formatted("abc".repeat(TokenStream.INITIAL_BUFFER_SIZE));
+
+        for (ScanMode mode : ScanMode.values()) {
+            // The reader returns a few characters at a time so that tokens are
+            // split between reads.
+            Reader reader = new FilterReader(new StringReader(code)) {
+                    @Override
+                    public int read(char[] buffer, int offset, int length) throws IOException
+                    {
+                        return super.read(buffer, offset, Math.min(length, 3));
+                    }
+                };
+            List<Token> outputTokens = new ArrayList<>();
+            SchemeScanner.tokenize(reader, mode).forEachRemaining(outputTokens::add);
+            compareLists(SchemeScanner.tokenize(code, mode), outputTokens);
+        }
+
+        // A buffer scanned from a reader only keeps the values of the tokens,
+        // with their positions in the code.
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.DFA);
+        TokenBuffer readTokens = SchemeScanner.scan(new StringReader(code), ScanMode.DFA);
+        compareLists(tokens.asList(), readTokens.asList());
+        for (int i = 0; i <= tokens.size(); i++) {
+            assertEquals(tokens.position(i), readTokens.position(i));
+        }
+        assertTrue(readTokens.source().length() < 100);
+    }
+
+    @Test
+    public void skipCommentsAndDirectives() throws IOException
+    {
+        String code = """
+#!fold-case
+#| a #| nested
+   |# comment |#
+(f #;(g (h) #(1 2)) #; 'x #;#; a b
+   1) ; no line ending""";
+        List<Token> expectedTokens =
+            Arrays.asList(new Token(TokenType.DELIMITER, "("),
+                          new Token(TokenType.IDENTIFIER, "f"),
+                          new Token(TokenType.NUMBER, "1"),
+                          new Token(TokenType.DELIMITER, ")"));
+        compareLists(expectedTokens, tokenize(code));
+
+        for (ScanMode mode : ScanMode.values()) {
+            Reader reader = new FilterReader(new StringReader(code)) {
+                    @Override
+                    public int read(char[] buffer, int offset, int length) throws IOException
+                    {
+                        return super.read(buffer, offset, Math.min(length, 1));
+                    }
+                };
+            List<Token> outputTokens = new ArrayList<>();
+            SchemeScanner.tokenize(reader, mode).forEachRemaining(outputTokens::add);
+            compareLists(expectedTokens, outputTokens);
+        }
+
+        // An unclosed comment isn't intertoken space.
+        assertEquals(1, SchemeScanner.skipIntertokenSpace(" #| a #| b |# ", 0));
+        assertEquals(1, SchemeScanner.skipIntertokenSpace(" #; (a ", 0));
+    }
+
+    @Test
+    public void scanInParallel()
+    {
+        String code = """
+(define s "a (string) with ; and #| in it")
+(define c '(#\\( #\\) #\\" #\\|)) ; a comment with (
+#| a #| nested |# comment ) |#
+(define |an (identifier)| 1) #;(a datum comment
+                                ) (display s)
+#; (a) (b)""";
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (ScanMode mode : ScanMode.values()) {
+            List<Token> expectedTokens = SchemeScanner.tokenize(code, mode);
+            for (int chunkSize = 1; chunkSize < code.length(); chunkSize++) {
+                compareLists(expectedTokens, ParallelScan.scan(code, mode, pool, chunkSize).asList());
+            }
+            compareLists(expectedTokens, SchemeScanner.scanParallel(code, mode, pool).asList());
+        }
+
+        String invalidCode = "(a) (b) (c \"d)";
+        for (int chunkSize = 1; chunkSize < invalidCode.length(); chunkSize++) {
+            try {
+                ParallelScan.scan(invalidCode, ScanMode.DFA, pool, chunkSize);
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertEquals("No valid token was found at line 1, column 12 (position 11).",
+                             e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void rescanEditedCode()
+    {
+        String code = """
+(define (f a b) (+ a b 1.5))
+; a comment
+(display "abc") #| a comment |# (f #t #\\a)""";
+        // Each edit is (offset, removed length, inserted text).
+        List<Object[]> edits =
+            Arrays.asList(new Object[] {9, 1, "ab"},
+                          new Object[] {24, 0, "2"},
+                          new Object[] {23, 3, "3/4"},
+                          new Object[] {0, 28, ""},
+                          new Object[] {52, 0, " ("},
+                          new Object[] {57, 2, ";"},
+                          new Object[] {72, 0, " #|x|#"},
+                          new Object[] {76, 1, ""},
+                          new Object[] {78, 0, "rue"},
+                          new Object[] {code.length(), 0, " (g)"});
+
+        for (ScanMode mode : ScanMode.values()) {
+            TokenBuffer oldTokens = SchemeScanner.scan(code, mode);
+            for (Object[] edit : edits) {
+                int offset = (int) edit[0];
+                int removedLength = (int) edit[1];
+                String insertedText = (String) edit[2];
+                String newCode = code.substring(0, offset) + insertedText
+                    + code.substring(offset + removedLength);
+
+                TokenBuffer tokens =
+                    SchemeScanner.rescan(oldTokens, offset, removedLength, insertedText, mode);
+                assertEquals(newCode, tokens.source().toString());
+                compareLists(SchemeScanner.tokenize(newCode, mode), tokens.asList());
+            }
+        }
+
+        // Only the tokens around the edit are scanned again.
+        String longCode = "(f 1 2)\n".repeat(1000);
+        SchemeScanner scanner = new SchemeScanner(longCode.replaceFirst("1", "(g 3)"));
+        TokenBuffer tokens = scanner.rescan(SchemeScanner.scan(longCode, ScanMode.REGEX), 3, 1, 5);
+        compareLists(scanner.scan().asList(), tokens.asList());
+        assertEquals(4, scanner.rescannedTokenCount);
+    }
+
+    @Test
+    public void reportLineAndColumnOfInvalidTokens()
+    {
+        String code = "(a)\r\n(b)\r(c)\n\n  (d \"e)";
+        String message = "No valid token was found at line 5, column 6 (position 19).";
+        for (ScanMode mode : ScanMode.values()) {
+            try {
+                SchemeScanner.scan(code, mode);
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertEquals(message, e.getMessage());
+            }
+
+            try {
+                SchemeScanner.tokenize(new StringReader(code), mode).forEachRemaining(token -> {});
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertEquals(message, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void tagNumberTokens()
+    {
+        TokenBuffer tokens = SchemeScanner.scan("(f 12 #e#x1f0 123456789012345678901 -3/4 1.5e2"
+                                                + " +nan.0 1-2i #b1@0 x)",
+                                                ScanMode.DFA);
+        List<Object> expectedTags =
+            Arrays.asList(NumberLiteral.tag(NumberType.FIXNUM, 10, Exactness.UNSPECIFIED, 0, 0),
+                          NumberLiteral.tag(NumberType.FIXNUM, 16, Exactness.EXACT, 4, 0),
+                          NumberLiteral.tag(NumberType.BIGNUM, 10, Exactness.UNSPECIFIED, 0, 0),
+                          NumberLiteral.tag(NumberType.RATIONAL, 10, Exactness.UNSPECIFIED, 0, 2),
+                          NumberLiteral.tag(NumberType.FLONUM, 10, Exactness.UNSPECIFIED, 0, 0),
+                          NumberLiteral.tag(NumberType.INFNAN, 10, Exactness.UNSPECIFIED, 0, 0),
+                          NumberLiteral.tag(NumberType.RECTANGULAR, 10, Exactness.UNSPECIFIED, 0, 1),
+                          NumberLiteral.tag(NumberType.POLAR, 2, Exactness.UNSPECIFIED, 2, 3));
+        List<Object> tags = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == TokenType.NUMBER) tags.add(tokens.tag(i));
+        }
+        compareLists(expectedTags, tags);
+        assertEquals(0, tokens.tag(1));
+
+        int tag = tokens.tag(3);
+        assertEquals(NumberType.FIXNUM, NumberLiteral.type(tag));
+        assertEquals(16, NumberLiteral.radix(tag));
+        assertEquals(Exactness.EXACT, NumberLiteral.exactness(tag));
+    }
+
+    @Test
+    public void scanIntoTokenBuffer()
+    {
+        String code = "(display  \"hi\")";
+        TokenBuffer tokens = SchemeScanner.scan(code, ScanMode.REGEX);
+        assertEquals(4, tokens.size());
+        assertEquals(TokenType.STRING, tokens.type(2));
+        assertEquals(10, tokens.start(2));
+        assertEquals(4, tokens.length(2));
+        assertEquals("\"hi\"", tokens.value(2));
+        assertTrue(tokens.valueEquals(1, "display"));
+        assertEquals(new Token(TokenType.DELIMITER, ")"), tokens.get(3));
+        compareLists(tokens.asList(), TokenBuffer.of(tokens.asList()).asList());
+    }
+
+    @Test
+    public void scanMappedFile() throws IOException
+    {
+        for (String code : Arrays.asList("(display\r\n  \"hi\")\r\n", "(display \"h\u00e9\")")) {
+            Path path = Files.createTempFile("scheme", ".scm");
+            try {
+                Files.write(path, code.getBytes(StandardCharsets.UTF_8));
+                CharSequence mapped = MappedSource.map(path);
+                assertEquals(code, mapped.toString());
+                TokenBuffer tokens = SchemeScanner.scan(mapped, ScanMode.DFA);
+                compareLists(tokenize(code), tokens.asList());
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void scanMappedUtf8File() throws IOException
+    {
+        // The file is decoded by regions, which some characters, and their
+        // surrogate pairs, cross.
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            builder.append("(display \"h\u00e9 \u4e16 \ud83d\ude00\") ; \u00e0 ").append(i).append('\n');
+        }
+        String code = builder.toString();
+        Path path = Files.createTempFile("scheme", ".scm");
+        try {
+            Files.write(path, code.getBytes(StandardCharsets.UTF_8));
+            CharSequence mapped = MappedSource.map(path);
+            assertEquals(code.length(), mapped.length());
+            assertEquals(code, mapped.toString());
+            assertEquals(code.substring(8190, 24600), mapped.subSequence(8190, 24600).toString());
+            assertEquals(code.charAt(70000), mapped.charAt(70000));
+            List<Token> expectedTokens = tokenize(code);
+            compareLists(expectedTokens, SchemeScanner.scan(mapped, ScanMode.DFA).asList());
+            ForkJoinPool pool = new ForkJoinPool(4);
+            compareLists(expectedTokens,
+                         ParallelScan.scan(mapped, ScanMode.DFA, pool, 1000).asList());
+
+            // Bytes which aren't UTF-8 fail when the file is mapped.
+            byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+            bytes[20000] = (byte) 0xff;
+            Files.write(path, bytes);
+            try {
+                MappedSource.map(path);
+                assertTrue(false);
+            } catch (IOException e) {
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Tokenize the code with every scan mode, and check that they agree.
+     */
+    static List<Token> tokenize(String code)
+    {
+        List<Token> tokens = SchemeScanner.tokenize(code, ScanMode.REGEX);
+        compareLists(tokens, SchemeScanner.tokenize(code, ScanMode.DFA));
+        return tokens;
     }
 
     static void compareLists(List<?> list1, List<?> list2)